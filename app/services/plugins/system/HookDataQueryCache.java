@@ -0,0 +1,143 @@
+package services.plugins.system;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A bounded (LRU) cache for the results of the {@link HookScriptUtils.HookDataQuery}
+ * which are flagged as cacheable.<br/>
+ * The entries expire after the time to live defined by the query. They are
+ * also invalidated by {@link #invalidate(String)} when an object of the
+ * queried data type or of a fetched association is created, updated or
+ * deleted. Only the event notification plugin receives these events: in the
+ * other plugins the entries are only invalidated by the time to live.<br/>
+ * The cached objects are loaded in read-only mode since they are shared
+ * between the invocations of the script.
+ */
+public class HookDataQueryCache {
+    public static final int DEFAULT_MAX_ENTRIES = 100;
+
+    private int maxEntries = DEFAULT_MAX_ENTRIES;
+    private LinkedHashMap<String, CachedResult> entries;
+    private long hits;
+    private long misses;
+    private long invalidations;
+
+    public HookDataQueryCache() {
+        this.entries = new LinkedHashMap<String, CachedResult>(16, 0.75f, true);
+    }
+
+    /**
+     * Configure the cache
+     * @param maxEntries the maximum number of query results kept in memory
+     */
+    public synchronized void configure(int maxEntries) {
+        this.maxEntries = maxEntries < 1 ? 1 : maxEntries;
+        evict();
+    }
+
+    /**
+     * Return the result associated with the specified key
+     * @param key a key identifying a query
+     * @return a list of objects or null if no valid result is found
+     */
+    public synchronized List<?> get(String key) {
+        CachedResult cachedResult = entries.get(key);
+        if (cachedResult != null && cachedResult.isExpired()) {
+            entries.remove(key);
+            cachedResult = null;
+        }
+        if (cachedResult == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return cachedResult.getObjects();
+    }
+
+    /**
+     * Store the result of a query
+     * @param key a key identifying a query
+     * @param dataTypeClassNames the names of the classes of the queried objects and of the fetched associations
+     * @param objects the result of the query
+     * @param timeToLive the validity of the result (in milliseconds)
+     * @return the (unmodifiable) cached result
+     */
+    public synchronized List<?> put(String key, Set<String> dataTypeClassNames, List<?> objects, long timeToLive) {
+        CachedResult cachedResult = new CachedResult(dataTypeClassNames, objects, System.currentTimeMillis() + timeToLive);
+        entries.put(key, cachedResult);
+        evict();
+        return cachedResult.getObjects();
+    }
+
+    /**
+     * Remove the results of the queries which use the specified data type
+     * (queried objects or fetched associations)
+     * @param dataTypeClassName the name of the class of a data type
+     */
+    public synchronized void invalidate(String dataTypeClassName) {
+        Iterator<CachedResult> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().getDataTypeClassNames().contains(dataTypeClassName)) {
+                iterator.remove();
+                invalidations++;
+            }
+        }
+    }
+
+    /**
+     * Return the statistics of the cache
+     * @return a map (statistic name, value)
+     */
+    public synchronized Map<String, Long> getStatistics() {
+        Map<String, Long> statistics = new LinkedHashMap<String, Long>();
+        statistics.put("entries", (long) entries.size());
+        statistics.put("hits", hits);
+        statistics.put("misses", misses);
+        statistics.put("invalidations", invalidations);
+        return statistics;
+    }
+
+    /**
+     * Remove the eldest entries if the cache is too large.<br/>
+     * Must be called in a synchronized block.
+     */
+    private void evict() {
+        Iterator<CachedResult> iterator = entries.values().iterator();
+        while (entries.size() > maxEntries && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * The result of a query stored in the cache
+     */
+    private static class CachedResult {
+        private Set<String> dataTypeClassNames;
+        private List<?> objects;
+        private long expirationDate;
+
+        private CachedResult(Set<String> dataTypeClassNames, List<?> objects, long expirationDate) {
+            this.dataTypeClassNames = dataTypeClassNames;
+            this.objects = Collections.unmodifiableList(objects);
+            this.expirationDate = expirationDate;
+        }
+
+        private boolean isExpired() {
+            return System.currentTimeMillis() >= expirationDate;
+        }
+
+        private Set<String> getDataTypeClassNames() {
+            return dataTypeClassNames;
+        }
+
+        private List<?> getObjects() {
+            return objects;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package services.plugins.system;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import com.avaje.ebean.bean.EntityBean;
+import com.avaje.ebean.bean.EntityBeanIntercept;
+
+/**
+ * Tracks the objects returned to a hook script during an invocation in order
+ * to count the ones which have been loaded lazily (one SELECT each, or one per
+ * lazy loading batch).<br/>
+ * This makes the N+1 patterns visible: such patterns must be fixed with
+ * {@link HookScriptUtils.HookDataQuery#fetch(String, String)}.<br/>
+ * Only the objects returned to the threads which are running an invocation
+ * (between {@link #start()} and {@link #stop()}) are tracked.
+ */
+public class HookLazyLoadTracker {
+    /**
+     * Maximum number of tracked objects per invocation (to bound the memory)
+     */
+    private static final int MAX_TRACKED_BEANS = 10000;
+
+    private List<EntityBeanIntercept> loadedBeans = new ArrayList<EntityBeanIntercept>();
+    private List<EntityBeanIntercept> referenceBeans = new ArrayList<EntityBeanIntercept>();
+    private ThreadLocal<Boolean> tracking = new ThreadLocal<Boolean>();
+
+    /**
+     * Start tracking the objects returned to the current thread (beginning of
+     * an invocation)
+     */
+    public void start() {
+        tracking.set(Boolean.TRUE);
+    }
+
+    /**
+     * Stop tracking the objects returned to the current thread (end of an
+     * invocation)
+     */
+    public void stop() {
+        tracking.remove();
+    }
+
+    /**
+     * Track the objects returned by a query as well as the references to
+     * their associations
+     * @param beans a list of objects
+     */
+    public synchronized void track(Collection<?> beans) {
+        if (!isTracking()) {
+            return;
+        }
+        for (Object bean : beans) {
+            if (isFull()) {
+                return;
+            }
+            if (!(bean instanceof EntityBean)) {
+                continue;
+            }
+            EntityBean entityBean = (EntityBean) bean;
+            trackBean(entityBean);
+            String[] propertyNames = entityBean._ebean_getPropertyNames();
+            for (int i = 0; i < propertyNames.length && !isFull(); i++) {
+                if (entityBean._ebean_getIntercept().isLoadedProperty(i)) {
+                    Object value = entityBean._ebean_getField(i);
+                    if (value instanceof EntityBean) {
+                        trackBean((EntityBean) value);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Track an object (which may be a reference)
+     * @param bean an object
+     */
+    public synchronized void track(Object bean) {
+        if (isTracking() && bean instanceof EntityBean && !isFull()) {
+            trackBean((EntityBean) bean);
+        }
+    }
+
+    /**
+     * Return the number of tracked objects which have been loaded lazily
+     */
+    public synchronized int getLazyLoadCount() {
+        int count = 0;
+        for (EntityBeanIntercept intercept : loadedBeans) {
+            if (intercept.getLazyLoadProperty() != null) {
+                count++;
+            }
+        }
+        for (EntityBeanIntercept intercept : referenceBeans) {
+            if (!intercept.isReference()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Forget the tracked objects (end of an invocation)
+     */
+    public synchronized void reset() {
+        loadedBeans.clear();
+        referenceBeans.clear();
+    }
+
+    private boolean isTracking() {
+        return Boolean.TRUE.equals(tracking.get());
+    }
+
+    private void trackBean(EntityBean bean) {
+        EntityBeanIntercept intercept = bean._ebean_getIntercept();
+        if (intercept.isReference()) {
+            referenceBeans.add(intercept);
+        } else {
+            loadedBeans.add(intercept);
+        }
+    }
+
+    private boolean isFull() {
+        return loadedBeans.size() + referenceBeans.size() >= MAX_TRACKED_BEANS;
+    }
+}
@@ -0,0 +1,390 @@
+package services.plugins.system;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import framework.services.plugins.api.IPluginContext;
+import play.Logger;
+
+/**
+ * An asynchronous outbox for the e-mails and the notifications sent by the hook
+ * scripts.<br/>
+ * The messages are accumulated during a batch window. At the end of the window:
+ * <ul>
+ * <li>the identical messages are de-duplicated</li>
+ * <li>the recipients of identical notifications (and, if configured, of
+ * identical e-mails) are merged into batches</li>
+ * <li>the messages are sent by a bounded pool of threads</li>
+ * </ul>
+ * The delivery outcomes are reported in the plugin report.
+ */
+public class HookMailOutbox {
+    private static Logger.ALogger log = Logger.of(HookMailOutbox.class);
+
+    public static final long DEFAULT_BATCH_WINDOW = 2000l;
+    public static final int DEFAULT_PARALLELISM = 2;
+    public static final int MAX_RECIPIENTS_PER_MESSAGE = 50;
+    /**
+     * The time given to the deliveries in progress when the outbox is shut
+     * down (the plugin runners call the shutdown while holding their lock)
+     */
+    private static final long SHUTDOWN_TIMEOUT = 2000l;
+
+    private IPluginContext pluginContext;
+    private ScheduledExecutorService scheduler;
+    private ExecutorService senders;
+    private long batchWindow = DEFAULT_BATCH_WINDOW;
+    private boolean mergeMailRecipients = false;
+    private Map<MessageKey, Set<String>> pendingMessages;
+    private boolean flushScheduled = false;
+
+    public HookMailOutbox(IPluginContext pluginContext, ScheduledExecutorService scheduler) {
+        this.pluginContext = pluginContext;
+        this.scheduler = scheduler;
+        this.pendingMessages = new LinkedHashMap<MessageKey, Set<String>>();
+        this.senders = createSenders(DEFAULT_PARALLELISM);
+    }
+
+    /**
+     * Configure the outbox
+     * @param batchWindow the time (in milliseconds) during which the messages are accumulated
+     * @param parallelism the maximum number of messages sent in parallel
+     * @param mergeMailRecipients true if the recipients of identical e-mails must be merged into one e-mail
+     */
+    public synchronized void configure(long batchWindow, int parallelism, boolean mergeMailRecipients) {
+        this.batchWindow = Math.max(0, batchWindow);
+        this.mergeMailRecipients = mergeMailRecipients;
+        ExecutorService previousSenders = this.senders;
+        this.senders = createSenders(parallelism < 1 ? 1 : parallelism);
+        previousSenders.shutdown();
+    }
+
+    /**
+     * Enqueue an e-mail
+     * @param subject the subject
+     * @param body the body
+     * @param to the recipients
+     * @param cc the copy recipients (may be null)
+     */
+    public void sendMail(String subject, String body, String[] to, String[] cc) {
+        enqueue(new MessageKey(false, subject, body, null, cc, isMergeMailRecipients() ? null : to), to);
+    }
+
+    /**
+     * Enqueue a BizDock notification
+     * @param title the title
+     * @param message the message
+     * @param actionLink an URL associated with the message
+     * @param uids the principals to be notified
+     */
+    public void sendNotification(String title, String message, String actionLink, String[] uids) {
+        enqueue(new MessageKey(true, title, message, actionLink, null, null), uids);
+    }
+
+    /**
+     * Send the pending messages without waiting for the end of the batch window
+     */
+    public void flush() {
+        Map<MessageKey, Set<String>> messages;
+        synchronized (this) {
+            messages = this.pendingMessages;
+            this.pendingMessages = new LinkedHashMap<MessageKey, Set<String>>();
+            this.flushScheduled = false;
+        }
+        if (messages.isEmpty()) {
+            return;
+        }
+        List<Delivery> deliveries = new ArrayList<Delivery>();
+        for (Map.Entry<MessageKey, Set<String>> message : messages.entrySet()) {
+            List<String> recipients = new ArrayList<String>(message.getValue());
+            // The recipients provided by the script in one call are never split
+            int batchSize = message.getKey().isMerged() ? MAX_RECIPIENTS_PER_MESSAGE : recipients.size();
+            for (int i = 0; i < recipients.size(); i += batchSize) {
+                List<String> batch = recipients.subList(i, Math.min(recipients.size(), i + batchSize));
+                deliveries.add(new Delivery(message.getKey(), batch.toArray(new String[batch.size()])));
+            }
+        }
+        DeliveryReport report = new DeliveryReport(deliveries.size());
+        List<Delivery> rejectedDeliveries = new ArrayList<Delivery>();
+        synchronized (this) {
+            // Submitted under the lock so that the senders are not replaced or
+            // shut down meanwhile (see configure and shutdown)
+            for (Delivery delivery : deliveries) {
+                try {
+                    this.senders.execute(new DeliveryTask(delivery, report));
+                } catch (RejectedExecutionException e) {
+                    rejectedDeliveries.add(delivery);
+                }
+            }
+        }
+        for (Delivery delivery : rejectedDeliveries) {
+            reportUndelivered(delivery, report);
+        }
+    }
+
+    /**
+     * Send the pending messages and wait (at most {@link #SHUTDOWN_TIMEOUT})
+     * for the end of the deliveries.<br/>
+     * The deliveries which are not started at the end of the wait are
+     * cancelled and reported as failed.
+     */
+    public void shutdown() {
+        flush();
+        ExecutorService currentSenders;
+        synchronized (this) {
+            currentSenders = this.senders;
+            currentSenders.shutdown();
+        }
+        try {
+            if (currentSenders.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+        } catch (InterruptedException e) {
+            log.error("Interrupted while waiting for the outbox deliveries", e);
+            Thread.currentThread().interrupt();
+        }
+        for (Runnable cancelledTask : currentSenders.shutdownNow()) {
+            DeliveryTask deliveryTask = (DeliveryTask) cancelledTask;
+            reportUndelivered(deliveryTask.getDelivery(), deliveryTask.getReport());
+        }
+    }
+
+    private void reportUndelivered(Delivery delivery, DeliveryReport report) {
+        MessageKey message = delivery.getMessage();
+        getPluginContext().reportMessage(null, true, "Unable to send the " + (message.isNotification() ? "notification" : "e-mail") + " \""
+                + message.getTitle() + "\" to " + Arrays.toString(delivery.getRecipients()) + ": the outbox is stopped");
+        report.failed();
+    }
+
+    private void enqueue(MessageKey messageKey, String[] recipients) {
+        if (recipients == null || recipients.length == 0) {
+            return;
+        }
+        synchronized (this) {
+            Set<String> pendingRecipients = pendingMessages.get(messageKey);
+            if (pendingRecipients == null) {
+                pendingRecipients = new LinkedHashSet<String>();
+                pendingMessages.put(messageKey, pendingRecipients);
+            }
+            pendingRecipients.addAll(Arrays.asList(recipients));
+            if (flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+        }
+        getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, getBatchWindow(), TimeUnit.MILLISECONDS);
+    }
+
+    private void deliver(Delivery delivery, DeliveryReport report) {
+        MessageKey message = delivery.getMessage();
+        try {
+            if (message.isNotification()) {
+                getPluginContext().sendNotification(message.getTitle(), message.getBody(), message.getActionLink(), delivery.getRecipients());
+            } else if (message.getCc() != null) {
+                getPluginContext().sendEmail(message.getTitle(), message.getBody(), delivery.getRecipients(), message.getCc());
+            } else {
+                getPluginContext().sendEmail(message.getTitle(), message.getBody(), delivery.getRecipients());
+            }
+            report.delivered();
+        } catch (Exception e) {
+            getPluginContext().reportMessage(null, true,
+                    "Unable to send the " + (message.isNotification() ? "notification" : "e-mail") + " \"" + message.getTitle() + "\" to "
+                            + Arrays.toString(delivery.getRecipients()),
+                    e);
+            report.failed();
+        }
+    }
+
+    private ExecutorService createSenders(int parallelism) {
+        return Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "hook-script-outbox-" + getPluginContext().getPluginConfigurationName());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private IPluginContext getPluginContext() {
+        return pluginContext;
+    }
+
+    private ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    private synchronized long getBatchWindow() {
+        return batchWindow;
+    }
+
+    private synchronized boolean isMergeMailRecipients() {
+        return mergeMailRecipients;
+    }
+
+    /**
+     * Counts the outcome of the deliveries of a flush and reports them once
+     * all of them are completed
+     */
+    private class DeliveryReport {
+        private AtomicInteger remaining;
+        private AtomicInteger delivered = new AtomicInteger();
+        private AtomicInteger failed = new AtomicInteger();
+
+        private DeliveryReport(int deliveries) {
+            this.remaining = new AtomicInteger(deliveries);
+        }
+
+        private void delivered() {
+            delivered.incrementAndGet();
+            completed();
+        }
+
+        private void failed() {
+            failed.incrementAndGet();
+            completed();
+        }
+
+        private void completed() {
+            if (remaining.decrementAndGet() == 0) {
+                getPluginContext().reportMessage(null, failed.get() != 0,
+                        String.format("Outbox flushed: %d message(s) sent, %d failure(s)", delivered.get(), failed.get()));
+            }
+        }
+    }
+
+    /**
+     * The task sending a message (kept to report the cancelled deliveries)
+     */
+    private class DeliveryTask implements Runnable {
+        private Delivery delivery;
+        private DeliveryReport report;
+
+        private DeliveryTask(Delivery delivery, DeliveryReport report) {
+            this.delivery = delivery;
+            this.report = report;
+        }
+
+        @Override
+        public void run() {
+            deliver(delivery, report);
+        }
+
+        private Delivery getDelivery() {
+            return delivery;
+        }
+
+        private DeliveryReport getReport() {
+            return report;
+        }
+    }
+
+    /**
+     * A message to be sent to a batch of recipients
+     */
+    private static class Delivery {
+        private MessageKey message;
+        private String[] recipients;
+
+        private Delivery(MessageKey message, String[] recipients) {
+            this.message = message;
+            this.recipients = recipients;
+        }
+
+        private MessageKey getMessage() {
+            return message;
+        }
+
+        private String[] getRecipients() {
+            return recipients;
+        }
+    }
+
+    /**
+     * The content of a message (used to identify the identical messages)
+     */
+    private static class MessageKey {
+        private boolean notification;
+        private String title;
+        private String body;
+        private String actionLink;
+        private String[] cc;
+        private List<String> recipientGroup;
+
+        /**
+         * @param recipientGroup if not null, the messages are merged only if
+         *            they are sent to the same recipients
+         */
+        private MessageKey(boolean notification, String title, String body, String actionLink, String[] cc, String[] recipientGroup) {
+            this.notification = notification;
+            this.title = title;
+            this.body = body;
+            this.actionLink = actionLink;
+            this.cc = cc != null && cc.length != 0 ? cc : null;
+            this.recipientGroup = recipientGroup != null ? Arrays.asList(recipientGroup) : null;
+        }
+
+        private boolean isNotification() {
+            return notification;
+        }
+
+        private String getTitle() {
+            return title;
+        }
+
+        private String getBody() {
+            return body;
+        }
+
+        private String getActionLink() {
+            return actionLink;
+        }
+
+        private String[] getCc() {
+            return cc;
+        }
+
+        /**
+         * Return true if the recipients of several messages may be merged
+         */
+        private boolean isMerged() {
+            return recipientGroup == null;
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(new Object[] { notification, title, body, actionLink, cc != null ? Arrays.asList(cc) : null, recipientGroup });
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof MessageKey)) {
+                return false;
+            }
+            MessageKey other = (MessageKey) obj;
+            return notification == other.notification && Objects.equals(title, other.title) && Objects.equals(body, other.body)
+                    && Objects.equals(actionLink, other.actionLink) && Arrays.equals(cc, other.cc) && Objects.equals(recipientGroup, other.recipientGroup);
+        }
+    }
+}
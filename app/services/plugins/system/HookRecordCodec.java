@@ -0,0 +1,151 @@
+package services.plugins.system;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/**
+ * A compact binary codec for the data stored by the hook scripts (shared
+ * records and state).<br/>
+ * The values which can be represented in JSON (strings, numbers, booleans,
+ * maps, lists and JSON trees) are encoded in Smile (binary JSON) after a
+ * header identifying the format and its version. The other values are
+ * returned unchanged (and are thus stored using the Java serialization).<br/>
+ * The decoding accepts both the encoded values and the values stored before
+ * the codec was introduced.<br/>
+ * The numbers are decoded with their Smile representation: the integral
+ * numbers as Integer, Long or BigInteger (the smallest one which holds the
+ * value), the floating point numbers as Double and the BigDecimal values
+ * as BigDecimal (with their exact scale).
+ */
+public final class HookRecordCodec {
+    private static final byte[] HEADER = new byte[] { 'H', 'K', 'S' };
+    private static final byte VERSION = 1;
+    private static final ObjectMapper SMILE_MAPPER = new ObjectMapper(new SmileFactory()).setNodeFactory(JsonNodeFactory.withExactBigDecimals(true));
+
+    private HookRecordCodec() {
+    }
+
+    /**
+     * Encode a value if it can be represented in JSON
+     * @param value a value (may be null)
+     * @return a byte array or the value itself if it cannot be encoded
+     * @throws IOException
+     */
+    public static Object encode(Object value) throws IOException {
+        if (value == null || !isEncodable(value)) {
+            return value;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(HEADER);
+        out.write(VERSION);
+        SMILE_MAPPER.writeValue(out, value);
+        return out.toByteArray();
+    }
+
+    /**
+     * Decode a value stored with {@link #encode(Object)} (a value which is
+     * not encoded is returned unchanged)
+     * @param storedValue a stored value (may be null)
+     * @return the decoded value (maps, lists, strings, numbers, booleans)
+     * @throws IOException
+     */
+    public static Object decode(Object storedValue) throws IOException {
+        if (!isEncoded(storedValue)) {
+            return storedValue;
+        }
+        byte[] bytes = (byte[]) storedValue;
+        if (bytes[HEADER.length] != VERSION) {
+            throw new IOException("Unsupported version " + bytes[HEADER.length] + " of the hook record format");
+        }
+        int offset = HEADER.length + 1;
+        return toJavaObject(SMILE_MAPPER.readTree(new ByteArrayInputStream(bytes, offset, bytes.length - offset)));
+    }
+
+    /**
+     * Return true if the stored value has been encoded by this codec
+     * @param storedValue a stored value
+     */
+    public static boolean isEncoded(Object storedValue) {
+        if (!(storedValue instanceof byte[])) {
+            return false;
+        }
+        byte[] bytes = (byte[]) storedValue;
+        if (bytes.length <= HEADER.length) {
+            return false;
+        }
+        for (int i = 0; i < HEADER.length; i++) {
+            if (bytes[i] != HEADER[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return true if the value can be represented in JSON
+     * @param value a value
+     */
+    public static boolean isEncodable(Object value) {
+        if (value == null || value instanceof String || value instanceof Number || value instanceof Boolean || value instanceof JsonNode) {
+            return true;
+        }
+        if (value instanceof Map) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (!(entry.getKey() instanceof String) || !isEncodable(entry.getValue())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (value instanceof Collection) {
+            for (Object item : (Collection<?>) value) {
+                if (!isEncodable(item)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static Object toJavaObject(JsonNode node) {
+        if (node == null || node.isNull()) {
+            return null;
+        }
+        if (node.isObject()) {
+            Map<String, Object> map = new LinkedHashMap<String, Object>();
+            Iterator<Map.Entry<String, JsonNode>> fields = node.fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                map.put(field.getKey(), toJavaObject(field.getValue()));
+            }
+            return map;
+        }
+        if (node.isArray()) {
+            List<Object> list = new ArrayList<Object>(node.size());
+            for (JsonNode item : node) {
+                list.add(toJavaObject(item));
+            }
+            return list;
+        }
+        if (node.isNumber()) {
+            return node.numberValue();
+        }
+        if (node.isBoolean()) {
+            return node.asBoolean();
+        }
+        return node.asText();
+    }
+}
@@ -1,14 +1,55 @@
 package services.plugins.system;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import akka.actor.Cancellable;
 import com.avaje.ebean.Ebean;
 import com.avaje.ebean.Expr;
 import com.avaje.ebean.Expression;
+import com.avaje.ebean.FetchConfig;
+import com.avaje.ebean.Query;
+import com.avaje.ebean.QueryIterator;
+import com.avaje.ebean.SqlQuery;
+import com.avaje.ebean.SqlRow;
+import com.avaje.ebean.Transaction;
+import com.avaje.ebeaninternal.api.SpiEbeanServer;
+import com.avaje.ebeaninternal.server.deploy.BeanDescriptor;
+import com.avaje.ebeaninternal.server.deploy.BeanProperty;
+import com.avaje.ebeaninternal.server.deploy.BeanPropertyAssocMany;
+import com.avaje.ebeaninternal.server.deploy.BeanPropertyAssocOne;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.TextNode;
 
 import dao.pmo.PortfolioEntryDao;
 import dao.pmo.PortfolioEntryEventDao;
@@ -20,16 +61,21 @@ import framework.services.custom_attribute.ICustomAttributeManagerService.Custom
 import framework.services.plugins.api.IPluginContext;
 import framework.services.plugins.api.IPluginContext.LogLevel;
 import framework.services.plugins.api.PluginException;
+import framework.services.system.ISysAdminUtils;
 import framework.utils.Msg;
 import jdk.nashorn.api.scripting.ScriptObjectMirror;
+import models.pmo.PortfolioEntry;
 import models.pmo.PortfolioEntryEvent;
+import models.pmo.PortfolioEntryEventType;
 import play.Logger;
 import play.libs.F.Callback;
 import play.libs.F.Promise;
+import play.libs.Json;
 import play.libs.ws.WSClient;
 import play.libs.ws.WSCookie;
 import play.libs.ws.WSRequest;
 import play.libs.ws.WSResponse;
+import scala.concurrent.duration.FiniteDuration;
 
 /**
  * A class provided to the hook scripts which gathers various utilities to be
@@ -39,6 +85,32 @@ import play.libs.ws.WSResponse;
  */
 public class HookScriptUtils {
 	private static Logger.ALogger log = Logger.of(HookScriptUtils.class);
+
+    /**
+     * The state key listing the recipients of the digest
+     */
+    private static final String DIGEST_RECIPIENTS_STATE_KEY = "_hookscript.digest.recipients";
+    /**
+     * The prefix of the state keys accumulating the digest entries (one key
+     * per recipient)
+     */
+    private static final String DIGEST_ENTRIES_STATE_KEY_PREFIX = "_hookscript.digest.entries.";
+    /**
+     * The prefix of the keys of the shared records owned by the hook scripts
+     * (stored in the {@link HookRecordCodec} format)
+     */
+    public static final String HOOK_SHARED_RECORD_PREFIX = "hookscript.";
+    private static final int MINIMAL_DIGEST_FREQUENCY = 1;
+    private static final int MAX_CACHED_CUSTOM_ATTRIBUTES = 1000;
+    private static final long UNKNOWN_DATA_TYPE_RETENTION = 300000l;
+    private static final int MAX_IDS_PER_QUERY = 1000;
+    private static final int EVENTS_BATCH_SIZE = 100;
+    private static final Object[] SHARED_RECORD_LOCKS = new Object[64];
+    static {
+        for (int i = 0; i < SHARED_RECORD_LOCKS.length; i++) {
+            SHARED_RECORD_LOCKS[i] = new Object();
+        }
+    }
 	
     public enum EventType {
         CREATE, UPDATE, DELETE;
@@ -47,16 +119,135 @@ public class HookScriptUtils {
     private IPluginContext pluginContext;
     private WSClient wsClient;
     private HookStateObject hookStateObject;
+    private HookWSCache wsCache;
+    private HookWSRateLimiter wsRateLimiter;
+    private ScheduledExecutorService scheduler;
+    private HookLazyLoadTracker lazyLoadTracker;
+    private HookDataQueryCache queryCache;
+    private HookMailOutbox outbox;
+    private ISysAdminUtils sysAdminUtils;
+    private Cancellable digestScheduler;
+    private String digestSubject;
     private ICustomAttributeManagerService customAttributeManagerService;
+    private Map<String, Map<String, Object>> customAttributesCache;
+    private ThreadLocal<Boolean> inInvocation = new ThreadLocal<Boolean>();
+    private volatile Map<String, Class<?>> dataModelClasses = Collections.emptyMap();
+    private volatile Map<String, Long> unknownDataTypes = Collections.emptyMap();
 
     public HookScriptUtils(ICustomAttributeManagerService customAttributeManagerService, IPluginContext pluginContext, WSClient wsClient) {
+        this(customAttributeManagerService, pluginContext, wsClient, null);
+    }
+
+    public HookScriptUtils(ICustomAttributeManagerService customAttributeManagerService, IPluginContext pluginContext, WSClient wsClient,
+            ISysAdminUtils sysAdminUtils) {
         super();
         this.pluginContext = pluginContext;
         this.wsClient = wsClient;
         this.customAttributeManagerService = customAttributeManagerService;
-        this.hookStateObject=new HookStateObject(pluginContext);
+        this.sysAdminUtils = sysAdminUtils;
+        this.wsCache=new HookWSCache(pluginContext);
+        this.lazyLoadTracker=new HookLazyLoadTracker();
+        this.queryCache=new HookDataQueryCache();
+        this.customAttributesCache=new HashMap<String, Map<String, Object>>();
+        this.scheduler=Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "hook-script-" + pluginContext.getPluginConfigurationName());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.hookStateObject=new HookStateObject(pluginContext, getScheduler());
+        this.wsRateLimiter=new HookWSRateLimiter(getScheduler());
+        this.outbox=new HookMailOutbox(pluginContext, getScheduler());
+    }
+
+    /**
+     * Release the resources associated with the utilities (to be called when
+     * the plugin is stopped).<br/>
+     * The pending messages of the outbox are sent while the WS calls waiting
+     * for the rate limiter are cancelled (their error callback is called).
+     */
+    public void shutdown() {
+        cancelDigest();
+        getOutbox().shutdown();
+        try {
+            getHookStateObject().flush();
+        } catch (HookScriptException e) {
+            getPluginContext().reportMessage(null, true, "Unable to store the state of the hook script", e);
+        }
+        getScheduler().shutdownNow();
+        getWsRateLimiter().cancelPendingTasks();
     }
     
+    /**
+     * Notify the utilities that the plugin starts an invocation of the
+     * script in the current thread (to be called by the plugin runners).<br/>
+     * The per-invocation caches (custom attributes, lazy load tracking) are
+     * used only by the threads running an invocation: the scripts called
+     * outside of an invocation (ex: callbacks of the WS calls) always read
+     * fresh data.
+     */
+    public void beginInvocation() {
+        inInvocation.set(Boolean.TRUE);
+        getLazyLoadTracker().reset();
+        getLazyLoadTracker().start();
+        clearCustomAttributesCache();
+        try {
+            getHookStateObject().refreshIfModified();
+        } catch (HookScriptException e) {
+            log.error("Unable to refresh the state of " + getPluginContext().getPluginConfigurationName(), e);
+        }
+    }
+
+    /**
+     * Notify the utilities that an invocation of the script is completed (to
+     * be called by the plugin runners)
+     */
+    public void endInvocation() {
+        if (log.isDebugEnabled()) {
+            int lazyLoadCount = getLazyLoadCount();
+            if (lazyLoadCount != 0) {
+                log.debug("Script of " + getPluginContext().getPluginConfigurationName() + " triggered " + lazyLoadCount
+                        + " lazy load(s), please consider adding some fetch to the queries");
+            }
+        }
+        getLazyLoadTracker().stop();
+        getLazyLoadTracker().reset();
+        clearCustomAttributesCache();
+        inInvocation.remove();
+    }
+
+    /**
+     * Return true if the current thread is running an invocation of the
+     * script (see {@link #beginInvocation()})
+     */
+    private boolean isInInvocation() {
+        return Boolean.TRUE.equals(inInvocation.get());
+    }
+
+    /**
+     * Reload the state if it has been modified by another node (outside of
+     * an invocation, the check done by {@link #beginInvocation()} is done
+     * when the state is read)
+     */
+    private void refreshStateOutsideInvocation() throws HookScriptException {
+        if (!isInInvocation()) {
+            getHookStateObject().refreshIfModified();
+        }
+    }
+
+    /**
+     * Return the number of objects (returned by getObjectFromId or by a query)
+     * which have been loaded lazily since the beginning of the current
+     * invocation.<br/>
+     * A high number reveals an N+1 pattern which can be fixed using
+     * {@link HookDataQuery#fetch(String, String)}.
+     */
+    public int getLazyLoadCount() {
+        return getLazyLoadTracker().getLazyLoadCount();
+    }
+
     /**
      * Wait the number of seconds
      * @param seconds a time in seconds
@@ -88,12 +279,65 @@ public class HookScriptUtils {
         	if(log.isDebugEnabled()){
         		log.debug("Found class name "+dataTypeClass);
         	}
-            return Ebean.getReference(dataTypeClass, objectId);
+            Object object = Ebean.getReference(dataTypeClass, objectId);
+            getLazyLoadTracker().track(object);
+            return object;
         } catch (Exception e) {
             throw new HookScriptException("Exception while looking for object " + dataTypeName + " for the id " + objectId);
         }
     }
 
+    /**
+     * Return the objects associated with the specified ids, loaded with one
+     * query (per {@link #MAX_IDS_PER_QUERY} ids).<br/>
+     * Example: getObjectsFromIds("PortfolioEntry", [12, 15, 3], ["manager", "portfolioEntryType"])
+     * @param dataTypeName the name of the data type
+     * @param objectIds a javascript array (or a java array/collection) of object ids
+     * @param fetchPaths the associations to be loaded with the objects (an array of paths or null)
+     * @return a list of objects in the order of the ids (null if no object is found for an id)
+     * @throws HookScriptException
+     */
+    public List<Object> getObjectsFromIds(String dataTypeName, Object objectIds, Object fetchPaths) throws HookScriptException {
+        List<Long> idList = convertToIdList(objectIds);
+        List<String> fetchPathList = new ArrayList<String>();
+        Object javaFetchPaths = convertToJavaObject(fetchPaths);
+        if (javaFetchPaths instanceof String) {
+            fetchPathList.add((String) javaFetchPaths);
+        } else if (javaFetchPaths instanceof Collection) {
+            for (Object fetchPath : (Collection<?>) javaFetchPaths) {
+                fetchPathList.add(String.valueOf(fetchPath));
+            }
+        } else if (javaFetchPaths instanceof Object[]) {
+            for (Object fetchPath : (Object[]) javaFetchPaths) {
+                fetchPathList.add(String.valueOf(fetchPath));
+            }
+        }
+        try {
+            Class<?> dataTypeClass = getDataModelClass(dataTypeName);
+            List<Long> distinctIds = new ArrayList<Long>(new LinkedHashSet<Long>(idList));
+            Map<Long, Object> objectsById = new HashMap<Long, Object>();
+            for (int i = 0; i < distinctIds.size(); i += MAX_IDS_PER_QUERY) {
+                Query<?> query = Ebean.createQuery(dataTypeClass);
+                for (String fetchPath : fetchPathList) {
+                    query.fetch(fetchPath);
+                }
+                query.where().idIn(distinctIds.subList(i, Math.min(distinctIds.size(), i + MAX_IDS_PER_QUERY)));
+                List<?> objects = query.findList();
+                getLazyLoadTracker().track(objects);
+                for (Object object : objects) {
+                    objectsById.put(((Number) Ebean.getBeanId(object)).longValue(), object);
+                }
+            }
+            List<Object> orderedObjects = new ArrayList<Object>(idList.size());
+            for (Long id : idList) {
+                orderedObjects.add(objectsById.get(id));
+            }
+            return orderedObjects;
+        } catch (Exception e) {
+            throw new HookScriptException("Exception while looking for objects " + dataTypeName + " for the ids " + idList, e);
+        }
+    }
+
     /**
      * Return a data query object
      * @param dataTypeName
@@ -102,17 +346,29 @@ public class HookScriptUtils {
      * @throws ClassNotFoundException
      */
     public HookDataQuery createQuery(String dataTypeName) throws ClassNotFoundException{
-        return new HookDataQuery(getDataModelClass(dataTypeName));
+        return new HookDataQuery(getDataModelClass(dataTypeName), getLazyLoadTracker(), getQueryCache());
     }
     
     /**
-     * Get the custom attributes values associated with the specified object
+     * Get the custom attributes values associated with the specified object.<br/>
+     * The values are cached until the end of the current invocation of the
+     * script (they are not cached outside of an invocation).
      * @param objectId the unique id of an object
      * @param dataTypeName the standard object type
      * @return an map of custom attributes (id of the attribute, value of type {@link CustomAttributeValueObject})
      */
     public Map<String, Object> getCustomAttributes(String dataTypeName, long objectId)
             throws HookScriptException{
+        String cacheKey = dataTypeName + "#" + objectId;
+        boolean cached = isInInvocation();
+        if (cached) {
+            synchronized (getCustomAttributesCache()) {
+                Map<String, Object> customAttributesMap = getCustomAttributesCache().get(cacheKey);
+                if (customAttributesMap != null) {
+                    return customAttributesMap;
+                }
+            }
+        }
         try{
             Class<?> dataTypeClass = getDataModelClass(dataTypeName);
             List<CustomAttributeValueObject> customAttributeValues= getCustomAttributeManagerService().getSerializableValues(dataTypeClass, objectId);
@@ -122,12 +378,40 @@ public class HookScriptUtils {
                     customAttributesMap.put(customAttributeValueObject.getUuid(), customAttributeValueObject);
                 }
             }
+            if (cached) {
+                synchronized (getCustomAttributesCache()) {
+                    if (getCustomAttributesCache().size() >= MAX_CACHED_CUSTOM_ATTRIBUTES) {
+                        getCustomAttributesCache().clear();
+                    }
+                    getCustomAttributesCache().put(cacheKey, customAttributesMap);
+                }
+            }
             return customAttributesMap;
         } catch (Exception e) {
             throw new HookScriptException("Exception while looking for custom attributes from object " + dataTypeName + " for the id " + objectId);
         }
     }
-    
+
+    /**
+     * Get the custom attributes values associated with several objects of the
+     * same type.<br/>
+     * The values already loaded during the current invocation are served from
+     * the cache, the other ones are loaded through the custom attribute
+     * manager, one call per object (the framework does not expose a query
+     * loading the values of several objects at once).
+     * @param dataTypeName the standard object type
+     * @param objectIds a list (or javascript array) of object ids
+     * @return a map (object id, map of custom attributes as returned by {@link #getCustomAttributes(String, long)})
+     */
+    public Map<Long, Map<String, Object>> getCustomAttributesBulk(String dataTypeName, Object objectIds) throws HookScriptException{
+        Map<Long, Map<String, Object>> customAttributesMaps = new LinkedHashMap<Long, Map<String, Object>>();
+        for (Long objectId : convertToIdList(objectIds)) {
+            if (!customAttributesMaps.containsKey(objectId)) {
+                customAttributesMaps.put(objectId, getCustomAttributes(dataTypeName, objectId));
+            }
+        }
+        return customAttributesMaps;
+    }
 
     /**
      * Add an event to the specified portfolio entry
@@ -138,48 +422,111 @@ public class HookScriptUtils {
      */
     public void addPortfolioEntryEvent(Long portfolioEntryId, Long portfolioEntryEventTypeId, String eventMessage, Object jsCreationDate){
     	PortfolioEntryEvent event=new PortfolioEntryEvent();
-    	if(jsCreationDate!=null){
-	    	ScriptObjectMirror jsDate = (ScriptObjectMirror) jsCreationDate;
-			long timestampLocalTime = ((Double) jsDate.callMember("getTime")).longValue(); 
-			//js date returns timestamp in local time so you need to adjust it...
-			int timezoneOffsetMinutes = ((Double)  jsDate.callMember("getTimezoneOffset")).intValue();
-	    	event.creationDate=new Date(timestampLocalTime + timezoneOffsetMinutes * 60 * 1000);
-    	}else{
-    		event.creationDate=new Date();
-    	}
+    	event.creationDate=convertToEventCreationDate(jsCreationDate);
     	event.portfolioEntry=PortfolioEntryDao.getPEById(portfolioEntryId);
     	event.portfolioEntryEventType=PortfolioEntryEventDao.getPEEventTypeById(portfolioEntryEventTypeId);
     	event.message=eventMessage;
     	event.save();
+    	getQueryCache().invalidate(PortfolioEntryEvent.class.getName());
+    }
+
+    /**
+     * Add several events to some portfolio entries in one transaction (the
+     * inserts are sent to the database in JDBC batches).<br/>
+     * Example: addPortfolioEntryEvents([{portfolioEntryId: 12, portfolioEntryEventTypeId: 1, message: "Hello", creationDate: new Date()}, ...])
+     * @param events a javascript array of objects with the attributes portfolioEntryId, portfolioEntryEventTypeId, message and creationDate (optional)
+     * @return the number of added events
+     * @throws HookScriptException
+     */
+    public int addPortfolioEntryEvents(Object events) throws HookScriptException {
+        if (!(events instanceof ScriptObjectMirror) || !((ScriptObjectMirror) events).isArray()) {
+            throw new HookScriptException("An array of events is expected");
+        }
+        ScriptObjectMirror eventArray = (ScriptObjectMirror) events;
+        int length = ((Number) eventArray.getMember("length")).intValue();
+        Map<Long, PortfolioEntryEventType> eventTypes = new HashMap<Long, PortfolioEntryEventType>();
+        Transaction transaction = Ebean.beginTransaction();
+        try {
+            transaction.setBatchMode(true);
+            transaction.setBatchSize(EVENTS_BATCH_SIZE);
+            for (int i = 0; i < length; i++) {
+                ScriptObjectMirror eventObject = (ScriptObjectMirror) eventArray.getSlot(i);
+                Long portfolioEntryEventTypeId = ((Number) eventObject.getMember("portfolioEntryEventTypeId")).longValue();
+                PortfolioEntryEventType eventType = eventTypes.get(portfolioEntryEventTypeId);
+                if (eventType == null) {
+                    eventType = PortfolioEntryEventDao.getPEEventTypeById(portfolioEntryEventTypeId);
+                    if (eventType == null) {
+                        throw new HookScriptException("Unknown portfolio entry event type " + portfolioEntryEventTypeId);
+                    }
+                    eventTypes.put(portfolioEntryEventTypeId, eventType);
+                }
+                PortfolioEntryEvent event = new PortfolioEntryEvent();
+                event.creationDate = convertToEventCreationDate(eventObject.getMember("creationDate"));
+                event.portfolioEntry = Ebean.getReference(PortfolioEntry.class, ((Number) eventObject.getMember("portfolioEntryId")).longValue());
+                event.portfolioEntryEventType = eventType;
+                Object message = eventObject.getMember("message");
+                event.message = message != null && !ScriptObjectMirror.isUndefined(message) ? message.toString() : null;
+                event.save();
+            }
+            Ebean.commitTransaction();
+            return length;
+        } catch (HookScriptException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new HookScriptException("Error while adding " + length + " portfolio entry events, none of them has been added", e);
+        } finally {
+            Ebean.endTransaction();
+            getQueryCache().invalidate(PortfolioEntryEvent.class.getName());
+        }
     }
 
+    /**
+     * Convert a javascript date into the creation date of an event (now if
+     * the date is not defined)
+     * @param jsCreationDate a javascript date (or null)
+     */
+    private static Date convertToEventCreationDate(Object jsCreationDate) {
+        if (!(jsCreationDate instanceof ScriptObjectMirror)) {
+            return new Date();
+        }
+        ScriptObjectMirror jsDate = (ScriptObjectMirror) jsCreationDate;
+        long timestampLocalTime = ((Double) jsDate.callMember("getTime")).longValue();
+        //js date returns timestamp in local time so you need to adjust it...
+        int timezoneOffsetMinutes = ((Double) jsDate.callMember("getTimezoneOffset")).intValue();
+        return new Date(timestampLocalTime + timezoneOffsetMinutes * 60 * 1000);
+    }
 
     /**
-     * Send an email
+     * Send an email.<br/>
+     * The email is queued in the outbox and sent asynchronously (see
+     * {@link #configureOutbox(long, int, boolean)}).
      *
      * @param subject
      * @param body
      * @param to
      */
     public void sendMail(String subject, String body, String... to) {
-        getPluginContext().sendEmail(subject, body, to);
+        getOutbox().sendMail(subject, body, to, null);
     }
 
     /**
-     * Send an email
+     * Send an email.<br/>
+     * The email is queued in the outbox and sent asynchronously (see
+     * {@link #configureOutbox(long, int, boolean)}).
      *
      * @param subject
      * @param body
      * @param to
      */
     public void sendMail(String subject, String body, String[] to, String[] cc) {
-        getPluginContext().sendEmail(subject, body, to, cc);
+        getOutbox().sendMail(subject, body, to, cc);
     }
 
     /**
      * Send a BizDock notification
      *
-     * Send a message to one or many principals.
+     * Send a message to one or many principals.<br/>
+     * The notification is queued in the outbox and sent asynchronously.
      *
      * @param title
      *            the message title
@@ -191,7 +538,159 @@ public class HookScriptUtils {
      *            the list of principal uid to be notified
      */
     public void sendNotification(String title, String message, String actionLink, String... uids) {
-        getPluginContext().sendNotification(title, message, actionLink, uids);
+        getOutbox().sendNotification(title, message, actionLink, uids);
+    }
+
+    /**
+     * Configure the outbox used to send the emails and the notifications.
+     *
+     * @param batchWindowInMilliseconds
+     *            the time during which the messages are accumulated (the
+     *            identical messages sent during this window are de-duplicated)
+     * @param parallelism
+     *            the maximum number of messages sent in parallel
+     * @param mergeMailRecipients
+     *            true if the recipients of identical emails must be merged into
+     *            one email (they will see each other)
+     */
+    public void configureOutbox(long batchWindowInMilliseconds, int parallelism, boolean mergeMailRecipients) {
+        getOutbox().configure(batchWindowInMilliseconds, parallelism, mergeMailRecipients);
+    }
+
+    /**
+     * Send the messages of the outbox without waiting for the end of the
+     * batch window
+     */
+    public void flushOutbox() {
+        getOutbox().flush();
+    }
+
+    /**
+     * Add an entry to the digest of the specified recipient.<br/>
+     * The entries are accumulated in the plugin state and sent as one email
+     * per recipient when the digest is flushed (see
+     * {@link #scheduleDigest(String, int)} and {@link #flushDigest()}).<br/>
+     * The entries of a recipient are stored under their own key, one JSON
+     * string per line, so that adding an entry only appends a line (the
+     * digest is parsed only by {@link #flushDigest()}).
+     *
+     * @param recipient
+     *            an email address
+     * @param entry
+     *            a text to be added to the digest
+     * @throws HookScriptException
+     */
+    public void addDigestEntry(String recipient, String entry) throws HookScriptException {
+        synchronized (getHookStateObject()) {
+            String entriesKey = DIGEST_ENTRIES_STATE_KEY_PREFIX + recipient;
+            String entries = getHookStateObject().getJsonString(entriesKey);
+            if (entries == null) {
+                appendDigestLine(DIGEST_RECIPIENTS_STATE_KEY, recipient);
+            }
+            appendDigestLine(entriesKey, entry);
+        }
+    }
+
+    /**
+     * Flush the digest at the specified frequency (one email per recipient).
+     * <br/>
+     * The flush is executed by the BizDock scheduler (the same one as the
+     * scheduled scripts). Any previously scheduled flush is cancelled.
+     *
+     * @param subject
+     *            the subject of the digest emails
+     * @param frequencyInMinutes
+     *            the flush frequency
+     * @throws HookScriptException
+     */
+    public synchronized void scheduleDigest(String subject, int frequencyInMinutes) throws HookScriptException {
+        if (getSysAdminUtils() == null) {
+            throw new HookScriptException("The digest scheduling is not available for this plugin");
+        }
+        if (frequencyInMinutes < MINIMAL_DIGEST_FREQUENCY) {
+            throw new HookScriptException("Invalid digest frequency, it must be at least " + MINIMAL_DIGEST_FREQUENCY + " minute(s)");
+        }
+        cancelDigest();
+        this.digestSubject = subject;
+        FiniteDuration frequency = FiniteDuration.create(frequencyInMinutes, TimeUnit.MINUTES);
+        this.digestScheduler = getSysAdminUtils().scheduleRecurring(true,
+                getPluginContext().getPluginDescriptor().getName() + " plugin " + getPluginContext().getPluginConfigurationName() + " digest", frequency,
+                frequency, new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            flushDigest();
+                        } catch (Exception e) {
+                            getPluginContext().reportMessage(null, true, "Error while sending the digest", e);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Send the accumulated digest entries (one email per recipient) and clear
+     * the digest.
+     *
+     * @throws HookScriptException
+     */
+    public void flushDigest() throws HookScriptException {
+        Map<String, List<String>> digest = new LinkedHashMap<String, List<String>>();
+        synchronized (getHookStateObject()) {
+            for (String recipient : readDigestLines(DIGEST_RECIPIENTS_STATE_KEY)) {
+                String entriesKey = DIGEST_ENTRIES_STATE_KEY_PREFIX + recipient;
+                List<String> entries = readDigestLines(entriesKey);
+                if (!entries.isEmpty()) {
+                    digest.put(recipient, entries);
+                }
+                getHookStateObject().removeJsonString(entriesKey);
+            }
+            getHookStateObject().removeJsonString(DIGEST_RECIPIENTS_STATE_KEY);
+        }
+        if (digest.isEmpty()) {
+            return;
+        }
+        String subject = getDigestSubject() != null ? getDigestSubject() : "BizDock digest";
+        for (Map.Entry<String, List<String>> recipientDigest : digest.entrySet()) {
+            getOutbox().sendMail(subject, String.join("\n", recipientDigest.getValue()), new String[] { recipientDigest.getKey() }, null);
+        }
+        getPluginContext().reportMessage(null, false, "Digest sent to " + digest.size() + " recipient(s)");
+    }
+
+    /**
+     * Append a line (a JSON string) to a digest key of the plugin state.<br/>
+     * Must be called while holding the lock of the state object.
+     * @param key a state key
+     * @param text the text to append
+     */
+    private void appendDigestLine(String key, String text) throws HookScriptException {
+        String lines = getHookStateObject().getJsonString(key);
+        String line = Json.stringify(TextNode.valueOf(text)) + "\n";
+        getHookStateObject().putJsonString(key, lines == null ? line : lines + line);
+    }
+
+    /**
+     * Read the lines of a digest key of the plugin state
+     * @param key a state key
+     * @return the texts stored in the key (an empty list if the key does not exist)
+     */
+    private List<String> readDigestLines(String key) throws HookScriptException {
+        List<String> texts = new ArrayList<String>();
+        String lines = getHookStateObject().getJsonString(key);
+        if (lines != null) {
+            for (String line : lines.split("\n")) {
+                if (!line.isEmpty()) {
+                    texts.add(Json.parse(line).asText());
+                }
+            }
+        }
+        return texts;
+    }
+
+    private synchronized void cancelDigest() {
+        if (this.digestScheduler != null && !this.digestScheduler.isCancelled()) {
+            this.digestScheduler.cancel();
+        }
+        this.digestScheduler = null;
     }
 
     /**
@@ -212,6 +711,24 @@ public class HookScriptUtils {
         logMessage(isError, objectType, objectId, eventType, message);
     }
 
+    /**
+     * Set the delay between a modification of the state (putJsonString,
+     * putJson, etc.) and its persistence.<br/>
+     * The state is always stored when the plugin is stopped.
+     * @param flushIntervalInMilliseconds a delay in milliseconds (0 to store the state on each modification)
+     */
+    public void configureStateFlush(long flushIntervalInMilliseconds) {
+        getHookStateObject().configure(flushIntervalInMilliseconds);
+    }
+
+    /**
+     * Store the pending modifications of the state immediately
+     * @throws HookScriptException
+     */
+    public void flushState() throws HookScriptException {
+        getHookStateObject().flush();
+    }
+
     /**
      * Store a Json string in the context
      * @param key a unique key
@@ -222,15 +739,81 @@ public class HookScriptUtils {
         getHookStateObject().putJsonString(key, value);
     }
 
+    /**
+     * Store a Json string in the context for a limited time (ex: a marker
+     * used to avoid sending the same notification twice)
+     * @param key a unique key
+     * @param value a Json string
+     * @param timeToLiveInSeconds the time after which the key is removed
+     * @throws HookScriptException
+     */
+    public void putJsonString(String key, String value, long timeToLiveInSeconds) throws HookScriptException {
+        getHookStateObject().putJsonString(key, value, timeToLiveInSeconds);
+    }
+
+    /**
+     * Limit the size of the state.<br/>
+     * When the state is stored, the expired keys are removed then, if the
+     * state is still too large, the least recently used keys are evicted.
+     * @param maxEntries the maximum number of keys (0 for no limit)
+     * @param maxBytes the maximum approximate size of the keys and values (0 for no limit)
+     */
+    public void configureStateLimits(int maxEntries, long maxBytes) {
+        getHookStateObject().configureLimits(maxEntries, maxBytes);
+    }
+
+    /**
+     * Return the current size of the state and the number of evicted keys
+     * @return a map (statistic name, value)
+     * @throws HookScriptException
+     */
+    public Map<String, Long> getStateStatistics() throws HookScriptException {
+        return getHookStateObject().getStatistics();
+    }
+
     /**
      * Get a Json string from the context
      * @param key a unique key
      * @throws HookScriptException
      */
     public String getJsonString(String key) throws HookScriptException {
+        refreshStateOutsideInvocation();
         return getHookStateObject().getJsonString(key);
     }
 
+    /**
+     * Store a structured value (JavaScript object, array or JSON tree) in the
+     * context.<br/>
+     * The value is serialized by Java so that the script does not need to call
+     * JSON.stringify.
+     * @param key a unique key
+     * @param value a JavaScript object or a JSON tree
+     * @throws HookScriptException
+     */
+    public void putJson(String key, Object value) throws HookScriptException {
+        getHookStateObject().putJsonString(key, Json.stringify(Json.toJson(convertToJavaObject(value))));
+    }
+
+    /**
+     * Get a structured value from the context as a JSON tree (navigable using
+     * get, path, size, asText, etc.).<br/>
+     * Return null if the key is not found.
+     * @param key a unique key
+     * @throws HookScriptException
+     */
+    public JsonNode getJson(String key) throws HookScriptException {
+        refreshStateOutsideInvocation();
+        String jsonString = getHookStateObject().getJsonString(key);
+        if (jsonString == null) {
+            return null;
+        }
+        try {
+            return Json.parse(jsonString);
+        } catch (RuntimeException e) {
+            throw new HookScriptException("The value associated with " + key + " is not a valid JSON string", e);
+        }
+    }
+
     /**
      * Log an INFO or ERROR message
      *
@@ -246,18 +829,26 @@ public class HookScriptUtils {
     /**
      * Store some data into a persistent storage which is shared 
      * between the plugins.<br/>
-     * If the record already exists it will be overwritten.
+     * If the record already exists it will be overwritten.<br/>
+     * If the key starts with {@link #HOOK_SHARED_RECORD_PREFIX} (records owned
+     * by the hook scripts), the JavaScript objects and arrays, the strings, the
+     * numbers and the booleans are stored in a compact binary format (see
+     * {@link HookRecordCodec}). The other records are stored as they are since
+     * they may be read by other plugins.
      * 
      * @param key a unique key identifying the record
      * @param stateObject
-     *            an object which must be {@link Serializable}
+     *            an object which must be {@link Serializable} (or a
+     *            JavaScript value for a record owned by the hook scripts)
      */
     public void setSharedRecord(String key, Object stateObject) throws HookScriptException{
-    	try {
-			getPluginContext().setSharedRecord(key, stateObject);
-		} catch (PluginException e) {
-			throw new HookScriptException("Error while saving some data in the shared storage",e);
-		}
+    	synchronized (getSharedRecordLock(key)) {
+	    	try {
+				getPluginContext().setSharedRecord(key, isHookSharedRecord(key) ? HookRecordCodec.encode(convertToJavaObject(stateObject)) : stateObject);
+			} catch (PluginException | IOException e) {
+				throw new HookScriptException("Error while saving some data in the shared storage",e);
+			}
+    	}
     }
 
     /**
@@ -270,8 +861,9 @@ public class HookScriptUtils {
      */
     public Object getSharedRecord(String key) throws HookScriptException{
     	try {
-			return getPluginContext().getSharedRecord(key);
-		} catch (PluginException e) {
+    		Object storedObject = getPluginContext().getSharedRecord(key);
+			return isHookSharedRecord(key) ? HookRecordCodec.decode(storedObject) : storedObject;
+		} catch (PluginException | IOException e) {
 			throw new HookScriptException("Error while getting some data from the shared storage",e);
 		}
     }
@@ -282,11 +874,108 @@ public class HookScriptUtils {
      * @param key a unique key identifying the record
      */
     public void deleteSharedRecord(String key) throws HookScriptException{
-    	try {
-			getPluginContext().deleteSharedRecord(key);
-		} catch (PluginException e) {
-			throw new HookScriptException("Error while deleting some data from the shared storage",e);
-		}
+    	synchronized (getSharedRecordLock(key)) {
+	    	try {
+				getPluginContext().deleteSharedRecord(key);
+			} catch (PluginException e) {
+				throw new HookScriptException("Error while deleting some data from the shared storage",e);
+			}
+    	}
+    }
+
+    /**
+     * Replace the data associated with the specified key only if the
+     * current data is the expected one (the numbers are compared by value).
+     * <br/>
+     * The check and the update are atomic only for the plugins running in the
+     * same JVM: the shared storage has no conditional write, so two BizDock
+     * nodes sharing the same database may both succeed (see
+     * {@link #getSharedRecordLock(String)}).
+     * 
+     * @param key a unique key identifying the record
+     * @param expectedObject the expected current data (null if the record must not exist)
+     * @param stateObject the new data (an object which must be {@link Serializable})
+     * @return true if the record has been updated
+     */
+    public boolean compareAndSetSharedRecord(String key, Object expectedObject, Object stateObject) throws HookScriptException{
+    	synchronized (getSharedRecordLock(key)) {
+    		if(!isSameSharedValue(getSharedRecord(key), convertToJavaObject(expectedObject))){
+    			return false;
+    		}
+    		setSharedRecord(key, stateObject);
+    		return true;
+    	}
+    }
+
+    /**
+     * Store the data only if no record is associated with the specified key.
+     * <br/>
+     * The check and the update are atomic only for the plugins running in the
+     * same JVM (see {@link #compareAndSetSharedRecord(String, Object, Object)}).
+     * 
+     * @param key a unique key identifying the record
+     * @param stateObject an object which must be {@link Serializable}
+     * @return the existing data or null if the data has been stored
+     */
+    public Object putIfAbsentSharedRecord(String key, Object stateObject) throws HookScriptException{
+    	synchronized (getSharedRecordLock(key)) {
+    		Object currentObject = getSharedRecord(key);
+    		if(currentObject == null){
+    			setSharedRecord(key, stateObject);
+    		}
+    		return currentObject;
+    	}
+    }
+
+    /**
+     * Add the specified value to a counter stored in the shared storage (the
+     * counter is created with the value 0 if it does not exist).<br/>
+     * The increment is atomic only for the plugins running in the same JVM,
+     * increments performed concurrently by several BizDock nodes may be lost
+     * (see {@link #compareAndSetSharedRecord(String, Object, Object)}).
+     * 
+     * @param key a unique key identifying the counter
+     * @param delta the value to add (may be negative)
+     * @return the new value of the counter
+     */
+    public long incrementSharedCounter(String key, long delta) throws HookScriptException{
+    	synchronized (getSharedRecordLock(key)) {
+    		Object currentObject = getSharedRecord(key);
+    		if(currentObject != null && !(currentObject instanceof Number)){
+    			throw new HookScriptException("The shared record " + key + " is not a counter");
+    		}
+    		long value = (currentObject == null ? 0 : ((Number) currentObject).longValue()) + delta;
+    		setSharedRecord(key, Long.valueOf(value));
+    		return value;
+    	}
+    }
+
+    /**
+     * Return the lock protecting the specified shared record.<br/>
+     * The shared records are common to all the plugins, the locks are thus
+     * static (striped to bound their number).<br/>
+     * These are JVM locks: they do not coordinate the BizDock nodes which
+     * share the same storage, {@link IPluginContext} offering no conditional
+     * (versioned) write on which a cross-node check could rely.
+     * @param key a unique key identifying the record
+     */
+    private static Object getSharedRecordLock(String key) {
+        return SHARED_RECORD_LOCKS[(key == null ? 0 : key.hashCode() & Integer.MAX_VALUE) % SHARED_RECORD_LOCKS.length];
+    }
+
+    /**
+     * Return true if the shared record is owned by the hook scripts
+     * @param key a unique key identifying the record
+     */
+    private static boolean isHookSharedRecord(String key) {
+        return key != null && key.startsWith(HOOK_SHARED_RECORD_PREFIX);
+    }
+
+    private static boolean isSameSharedValue(Object currentObject, Object expectedObject) {
+        if (currentObject instanceof Number && expectedObject instanceof Number) {
+            return ((Number) currentObject).doubleValue() == ((Number) expectedObject).doubleValue();
+        }
+        return Objects.equals(currentObject, expectedObject);
     }
 
     public String getMessage(String key) {
@@ -316,48 +1005,239 @@ public class HookScriptUtils {
      * @return a HookWSRequest object to be configured to perform the WS call
      */
     public HookWSRequest wsCall(String url) {
-        return new HookWSRequest(url, getPluginContext(), getWsClient());
+        return new HookWSRequest(url, getPluginContext(), getWsClient(), getWsCache(), getWsRateLimiter());
     }
 
     /**
-     * Return the data class associated with the specified BizDock data type
-     * name
+     * Define a rate limit (token bucket) for the WS calls to the specified host
+     * or URL prefix.
      *
-     * @param dataTypeName
-     *            a data type name (see {@link DataType})
-     * @return a class
-     * @throws ClassNotFoundException
+     * @param hostOrUrlPrefix
+     *            a host name (ex: api.server.com) or an URL prefix (ex:
+     *            https://api.server.com/v2/)
+     * @param requestsPerSecond
+     *            the sustained number of requests per second
+     * @param burst
+     *            the maximum number of requests which can be sent at once
+     * @param queueWhenExceeded
+     *            true if the requests exceeding the limit must be delayed,
+     *            false if they must be rejected
      */
-    private Class<?> getDataModelClass(String dataTypeName) throws ClassNotFoundException {
-        String className = null;
-        try {
-            className = DataType.getDataType(dataTypeName).getDataTypeClassName();
-        } catch (Exception e) {
-            String message = "Data type name " + dataTypeName + " not found";
-            getPluginContext().reportMessage(null, true, message);
-            throw new ClassNotFoundException(message);
-        }
-        return Class.forName(className);
+    public void setWsRateLimit(String hostOrUrlPrefix, double requestsPerSecond, int burst, boolean queueWhenExceeded) {
+        getWsRateLimiter().setLimit(hostOrUrlPrefix, requestsPerSecond, burst, queueWhenExceeded);
     }
 
-    private IPluginContext getPluginContext() {
-        return pluginContext;
+    /**
+     * Return the current level of the WS rate limit buckets
+     *
+     * @return a map (host or URL prefix, (attribute name, value))
+     */
+    public Map<String, Map<String, Object>> getWsRateLimits() {
+        return getWsRateLimiter().getStatus();
     }
 
-    private WSClient getWsClient() {
-        return wsClient;
-    }
-    
-    private ICustomAttributeManagerService getCustomAttributeManagerService() {
-        return this.customAttributeManagerService;
+    /**
+     * Configure the cache used by the cacheable WS calls (see
+     * {@link HookWSRequest#setCacheable(boolean)})
+     *
+     * @param maxEntries
+     *            the maximum number of responses kept in memory
+     * @param spillToSharedStorage
+     *            true if the responses evicted from the memory must be kept
+     *            in the shared storage
+     */
+    public void configureWsCache(int maxEntries, boolean spillToSharedStorage) {
+        getWsCache().configure(maxEntries, spillToSharedStorage);
     }
-    
+
     /**
-     * Convert some common script objects to their corresponding Java equivalent
-     * @param value a value
-     * @return a possibly converted value
+     * Return the hit/miss statistics of the WS cache per host
+     *
+     * @return a map (host, (statistic name, value))
      */
-    private static Object convertFromScriptObject(Object value){
+    public Map<String, Map<String, Long>> getWsCacheStatistics() {
+        return getWsCache().getStatistics();
+    }
+
+    /**
+     * Configure the cache of the query results (see
+     * {@link HookDataQuery#setCacheable(int)})
+     *
+     * @param maxEntries
+     *            the maximum number of query results kept in memory
+     */
+    public void configureQueryCache(int maxEntries) {
+        getQueryCache().configure(maxEntries);
+    }
+
+    /**
+     * Return the statistics of the cache of the query results
+     *
+     * @return a map (statistic name, value)
+     */
+    public Map<String, Long> getQueryCacheStatistics() {
+        return getQueryCache().getStatistics();
+    }
+
+    /**
+     * Remove the cached query results associated with the specified data
+     * type (to be called by the plugin runners when an object of this type
+     * is modified)
+     *
+     * @param dataType
+     *            a data type
+     */
+    public void invalidateQueryCache(DataType dataType) {
+        getQueryCache().invalidate(dataType.getDataTypeClassName());
+    }
+
+    /**
+     * Resolve in advance the classes of the specified data types and forget
+     * any previous failure to resolve them (to be called by the plugin
+     * runners with the data types they handle, when they are registered or
+     * when a message refers to a data type which is not yet resolved).
+     *
+     * @param dataTypes
+     *            some data types
+     */
+    public void registerDataModelClasses(Collection<DataType> dataTypes) {
+        boolean resolved = true;
+        for (DataType dataType : dataTypes) {
+            resolved &= this.dataModelClasses.containsKey(dataType.getDataName());
+        }
+        if (resolved) {
+            return;
+        }
+        synchronized (this) {
+            Map<String, Class<?>> newDataModelClasses = new HashMap<String, Class<?>>(this.dataModelClasses);
+            Map<String, Long> newUnknownDataTypes = new HashMap<String, Long>(this.unknownDataTypes);
+            for (DataType dataType : dataTypes) {
+                try {
+                    newDataModelClasses.put(dataType.getDataName(), Class.forName(dataType.getDataTypeClassName()));
+                    newUnknownDataTypes.remove(dataType.getDataName());
+                } catch (ClassNotFoundException e) {
+                    log.error("Unable to resolve the class of the data type " + dataType.getDataName(), e);
+                }
+            }
+            this.dataModelClasses = Collections.unmodifiableMap(newDataModelClasses);
+            this.unknownDataTypes = Collections.unmodifiableMap(newUnknownDataTypes);
+        }
+    }
+
+    /**
+     * Return the class associated with the specified data type.<br/>
+     * The resolved classes are kept in an immutable map which is replaced
+     * (copy on write) when a new data type is resolved, the lookups are thus
+     * lock free. The data types handled by the plugin are resolved in advance
+     * (see {@link #registerDataModelClasses(Collection)}), the other ones at
+     * their first use. The unknown data types are remembered (and reported
+     * once) during {@link #UNKNOWN_DATA_TYPE_RETENTION} milliseconds.
+     * @param dataTypeName the name of a data type
+     * @return a class
+     * @throws ClassNotFoundException
+     */
+    private Class<?> getDataModelClass(String dataTypeName) throws ClassNotFoundException {
+        Class<?> dataTypeClass = this.dataModelClasses.get(dataTypeName);
+        if (dataTypeClass != null) {
+            return dataTypeClass;
+        }
+        Long unknownUntil = this.unknownDataTypes.get(dataTypeName);
+        if (unknownUntil != null && unknownUntil > System.currentTimeMillis()) {
+            throw new ClassNotFoundException("Data type name " + dataTypeName + " not found");
+        }
+        return resolveDataModelClass(dataTypeName);
+    }
+
+    private synchronized Class<?> resolveDataModelClass(String dataTypeName) throws ClassNotFoundException {
+        Class<?> dataTypeClass = this.dataModelClasses.get(dataTypeName);
+        if (dataTypeClass != null) {
+            return dataTypeClass;
+        }
+        Long unknownUntil = this.unknownDataTypes.get(dataTypeName);
+        if (unknownUntil != null && unknownUntil > System.currentTimeMillis()) {
+            throw new ClassNotFoundException("Data type name " + dataTypeName + " not found");
+        }
+        try {
+            dataTypeClass = Class.forName(DataType.getDataType(dataTypeName).getDataTypeClassName());
+        } catch (Exception e) {
+            String message = "Data type name " + dataTypeName + " not found";
+            getPluginContext().reportMessage(null, true, message);
+            Map<String, Long> newUnknownDataTypes = new HashMap<String, Long>(this.unknownDataTypes);
+            newUnknownDataTypes.put(dataTypeName, System.currentTimeMillis() + UNKNOWN_DATA_TYPE_RETENTION);
+            this.unknownDataTypes = Collections.unmodifiableMap(newUnknownDataTypes);
+            throw new ClassNotFoundException(message);
+        }
+        Map<String, Class<?>> newDataModelClasses = new HashMap<String, Class<?>>(this.dataModelClasses);
+        newDataModelClasses.put(dataTypeName, dataTypeClass);
+        this.dataModelClasses = Collections.unmodifiableMap(newDataModelClasses);
+        if (this.unknownDataTypes.containsKey(dataTypeName)) {
+            Map<String, Long> newUnknownDataTypes = new HashMap<String, Long>(this.unknownDataTypes);
+            newUnknownDataTypes.remove(dataTypeName);
+            this.unknownDataTypes = Collections.unmodifiableMap(newUnknownDataTypes);
+        }
+        return dataTypeClass;
+    }
+
+    private IPluginContext getPluginContext() {
+        return pluginContext;
+    }
+
+    private WSClient getWsClient() {
+        return wsClient;
+    }
+
+    private HookWSCache getWsCache() {
+        return wsCache;
+    }
+
+    private HookWSRateLimiter getWsRateLimiter() {
+        return wsRateLimiter;
+    }
+
+    private ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    private HookMailOutbox getOutbox() {
+        return outbox;
+    }
+
+    private HookLazyLoadTracker getLazyLoadTracker() {
+        return lazyLoadTracker;
+    }
+
+    private HookDataQueryCache getQueryCache() {
+        return queryCache;
+    }
+
+    private ISysAdminUtils getSysAdminUtils() {
+        return sysAdminUtils;
+    }
+
+    private synchronized String getDigestSubject() {
+        return digestSubject;
+    }
+    
+    private Map<String, Map<String, Object>> getCustomAttributesCache() {
+        return customAttributesCache;
+    }
+
+    private void clearCustomAttributesCache() {
+        synchronized (getCustomAttributesCache()) {
+            getCustomAttributesCache().clear();
+        }
+    }
+
+    private ICustomAttributeManagerService getCustomAttributeManagerService() {
+        return this.customAttributeManagerService;
+    }
+    
+    /**
+     * Convert some common script objects to their corresponding Java equivalent
+     * @param value a value
+     * @return a possibly converted value
+     */
+    private static Object convertFromScriptObject(Object value){
         if(value==null) return null;
         if(value instanceof ScriptObjectMirror){
             ScriptObjectMirror scriptObject = (ScriptObjectMirror) value;
@@ -369,19 +1249,164 @@ public class HookScriptUtils {
         return value;
     }
     
+    /**
+     * Convert a list of ids provided by a script (javascript array, java
+     * array or collection) into a list of Long
+     * @param ids some ids
+     * @return a list of ids
+     */
+    private static List<Long> convertToIdList(Object ids) throws HookScriptException{
+        Object javaIds = convertToJavaObject(ids);
+        Collection<?> idCollection;
+        if(javaIds instanceof Collection){
+            idCollection = (Collection<?>) javaIds;
+        }else if(javaIds instanceof Object[]){
+            idCollection = Arrays.asList((Object[]) javaIds);
+        }else if(javaIds instanceof long[]){
+            List<Object> list = new ArrayList<Object>();
+            for(long id : (long[]) javaIds){
+                list.add(id);
+            }
+            idCollection = list;
+        }else{
+            throw new HookScriptException("An array of ids is expected");
+        }
+        List<Long> idList = new ArrayList<Long>(idCollection.size());
+        for(Object id : idCollection){
+            if(!(id instanceof Number)){
+                throw new HookScriptException("Invalid id " + id + ", a number is expected");
+            }
+            idList.add(((Number) id).longValue());
+        }
+        return idList;
+    }
+
+    /**
+     * Convert a script value (objects, arrays, dates) to its Java equivalent
+     * (maps, lists, dates) so that it can be serialized without any
+     * JSON.stringify call.
+     * @param value a value
+     * @return a possibly converted value
+     */
+    private static Object convertToJavaObject(Object value){
+        if(value instanceof ScriptObjectMirror){
+            ScriptObjectMirror scriptObject = (ScriptObjectMirror) value;
+            if(scriptObject.isFunction()){
+                return null;
+            }
+            if(scriptObject.isArray()){
+                int length = ((Number) scriptObject.getMember("length")).intValue();
+                List<Object> list = new ArrayList<Object>(length);
+                for(int i = 0; i < length; i++){
+                    list.add(convertToJavaObject(scriptObject.getSlot(i)));
+                }
+                return list;
+            }
+            if(scriptObject.getClassName().equals("Date")){
+                return convertFromScriptObject(value);
+            }
+            Map<String, Object> map = new LinkedHashMap<String, Object>();
+            for(Map.Entry<String, Object> entry : scriptObject.entrySet()){
+                map.put(entry.getKey(), convertToJavaObject(entry.getValue()));
+            }
+            return map;
+        }
+        if(value instanceof Double){
+            //JavaScript numbers are doubles, keep the integers as such
+            double number = (Double) value;
+            if(number == Math.rint(number) && !Double.isInfinite(number) && Math.abs(number) < Long.MAX_VALUE){
+                return (long) number;
+            }
+        }
+        return value;
+    }
+
     private HookStateObject getHookStateObject() {
         return hookStateObject;
     }
 
     /**
      * An object which is managing a state persisted using the current
-     * plugin context.
+     * plugin context.<br/>
+     * The state is loaded once and kept in memory: the reads and the writes
+     * do not access the plugin context. The modifications are stored
+     * (write-behind) after a configurable delay and when the plugin is
+     * stopped, several modifications are thus persisted with one write.<br/>
+     * A version stamp, stored in a shared record, is changed on each write:
+     * if another node (or another instance of the plugin) modified the
+     * state, the local copy is reloaded and the local modifications which
+     * are not yet stored are applied on top of it.<br/>
+     * A key may have a time to live. The size of the state may be limited
+     * (see {@link #configureLimits(int, long)}): the expired keys then the
+     * least recently used ones are removed when the state is stored.
      */
     public static class HookStateObject{
+        public static final long DEFAULT_FLUSH_INTERVAL = 5000l;
+        public static final long VERSION_CHECK_INTERVAL = 1000l;
+        private static final String VERSION_RECORD_PREFIX = "hookstate.version.";
+        private static final Object REMOVED = new Object();
+        private static final String INTERNAL_KEY_PREFIX = "_hookscript.";
+        private static final String EXPIRATIONS_KEY = INTERNAL_KEY_PREFIX + "state.expirations";
+
         private IPluginContext pluginContext;
-        
-        private HookStateObject(IPluginContext pluginContext){
+        private ScheduledExecutorService scheduler;
+        private volatile Map<String, Object> entries;
+        private Map<String, Object> pendingChanges = new ConcurrentHashMap<String, Object>();
+        private AtomicBoolean dirty = new AtomicBoolean(false);
+        private boolean flushScheduled = false;
+        private long flushInterval = DEFAULT_FLUSH_INTERVAL;
+        private Object flushLock = new Object();
+        private Object version;
+        private long lastVersionCheck = 0;
+        private volatile Map<String, Long> expirations = new ConcurrentHashMap<String, Long>();
+        private Map<String, Long> lastAccesses = new ConcurrentHashMap<String, Long>();
+        private int maxEntries = 0;
+        private long maxBytes = 0;
+        private long evictions = 0;
+
+        private HookStateObject(IPluginContext pluginContext, ScheduledExecutorService scheduler){
             this.pluginContext = pluginContext;
+            this.scheduler = scheduler;
+        }
+
+        /**
+         * Set the delay between a modification of the state and its
+         * persistence
+         * @param flushInterval a delay in milliseconds (0 to store the state on each modification)
+         */
+        public synchronized void configure(long flushInterval){
+            this.flushInterval = Math.max(0, flushInterval);
+        }
+
+        /**
+         * Limit the size of the state (applied when the state is stored)
+         * @param maxEntries the maximum number of keys (0 for no limit)
+         * @param maxBytes the maximum approximate size of the keys and values (0 for no limit)
+         */
+        public void configureLimits(int maxEntries, long maxBytes){
+            synchronized (flushLock) {
+                this.maxEntries = Math.max(0, maxEntries);
+                this.maxBytes = Math.max(0, maxBytes);
+            }
+        }
+
+        /**
+         * Return the size of the state
+         * @return a map (statistic name, value)
+         * @throws HookScriptException
+         */
+        public Map<String, Long> getStatistics() throws HookScriptException{
+            Map<String, Object> currentEntries = getEntries();
+            Map<String, Long> statistics = new LinkedHashMap<String, Long>();
+            synchronized (flushLock) {
+                statistics.put("entries", (long) currentEntries.size());
+                statistics.put("approximateBytes", getApproximateSize(currentEntries));
+                statistics.put("expiringEntries", (long) expirations.size());
+                statistics.put("evictions", evictions);
+                statistics.put("maxEntries", (long) maxEntries);
+                statistics.put("maxBytes", maxBytes);
+            }
+            return statistics;
         }
         
         /**
@@ -390,18 +1415,34 @@ public class HookScriptUtils {
          * @param value a JSON String
          * @throws HookScriptException
          */
-        public synchronized void putJsonString(String key, String value) throws HookScriptException{
-            try {
-                @SuppressWarnings("unchecked")
-                Map<String, Object> stateObject=(Map<String, Object>) getPluginContext().getState();
-                if(stateObject==null){
-                    stateObject=new HashMap<String, Object>();
+        public void putJsonString(String key, String value) throws HookScriptException{
+            putJsonString(key, value, 0);
+        }
+
+        /**
+         * Store a JSON string into the plugin context for a limited time
+         * @param key a key
+         * @param value a JSON String
+         * @param timeToLiveInSeconds the time after which the key is removed (0 for no limit)
+         * @throws HookScriptException
+         */
+        public void putJsonString(String key, String value, long timeToLiveInSeconds) throws HookScriptException{
+            if(value == null){
+                removeJsonString(key);
+                return;
+            }
+            long now = System.currentTimeMillis();
+            synchronized (flushLock) {
+                getEntries().put(key, value);
+                if(timeToLiveInSeconds > 0){
+                    expirations.put(key, now + timeToLiveInSeconds * 1000);
+                }else{
+                    expirations.remove(key);
                 }
-                stateObject.put(key, value);
-                getPluginContext().setState(stateObject);
-            } catch (PluginException e) {
-                throw new HookScriptException("Error while storing an object", e);
+                lastAccesses.put(key, now);
+                pendingChanges.put(key, value);
             }
+            modified();
         }
         
         /**
@@ -409,18 +1450,16 @@ public class HookScriptUtils {
          * @param key a key
          * @throws HookScriptException
          */
-        public synchronized void removeJsonString(String key) throws HookScriptException{
-            try {
-                @SuppressWarnings("unchecked")
-                Map<String, Object> stateObject=(Map<String, Object>) getPluginContext().getState();
-                if(stateObject==null){
-                    stateObject=new HashMap<String, Object>();
+        public void removeJsonString(String key) throws HookScriptException{
+            synchronized (flushLock) {
+                expirations.remove(key);
+                lastAccesses.remove(key);
+                if(getEntries().remove(key) == null){
+                    return;
                 }
-                stateObject.remove(key);
-                getPluginContext().setState(stateObject);
-            } catch (PluginException e) {
-                throw new HookScriptException("Error while storing an object", e);
+                pendingChanges.put(key, REMOVED);
             }
+            modified();
         }
         
         /**
@@ -429,19 +1468,302 @@ public class HookScriptUtils {
          * @return a Json string
          * @throws HookScriptException
          */
-        public synchronized String getJsonString(String key) throws HookScriptException{
-            try {
+        public String getJsonString(String key) throws HookScriptException{
+            Object value = getEntries().get(key);
+            if(value == null){
+                return null;
+            }
+            long now = System.currentTimeMillis();
+            Long expiration = expirations.get(key);
+            if(expiration != null && expiration <= now){
+                removeJsonString(key);
+                return null;
+            }
+            lastAccesses.put(key, now);
+            return (String) value;
+        }
+
+        /**
+         * Store the state into the plugin context if it has been modified
+         * since the last flush
+         * @throws HookScriptException
+         */
+        public void flush() throws HookScriptException{
+            synchronized (flushLock) {
+                if(!dirty.getAndSet(false)){
+                    return;
+                }
+                Map<String, Object> changes = new HashMap<String, Object>();
+                for(Map.Entry<String, Object> pendingChange : pendingChanges.entrySet()){
+                    changes.put(pendingChange.getKey(), pendingChange.getValue());
+                    pendingChanges.remove(pendingChange.getKey(), pendingChange.getValue());
+                }
+                try {
+                    if(isModifiedByOthers()){
+                        reload(changes);
+                    }
+                    applyChanges(getEntries(), changes);
+                    enforceLimits();
+                    HashMap<String, Object> stateObject = new HashMap<String, Object>(getEntries());
+                    if(!expirations.isEmpty()){
+                        stateObject.put(EXPIRATIONS_KEY, new HashMap<String, Long>(expirations));
+                    }
+                    getPluginContext().setState(HookRecordCodec.encode(stateObject));
+                } catch (PluginException | IOException e) {
+                    for(Map.Entry<String, Object> change : changes.entrySet()){
+                        pendingChanges.putIfAbsent(change.getKey(), change.getValue());
+                    }
+                    dirty.set(true);
+                    throw new HookScriptException("Error while storing the state", e);
+                }
+                publishVersion();
+            }
+        }
+
+        /**
+         * Reload the state if it has been modified by another node since the
+         * last check.<br/>
+         * The shared version stamp is read at most once per
+         * {@link #VERSION_CHECK_INTERVAL}.
+         */
+        public void refreshIfModified() throws HookScriptException{
+            synchronized (flushLock) {
+                long now = System.currentTimeMillis();
+                if(this.entries == null || now - lastVersionCheck < VERSION_CHECK_INTERVAL){
+                    return;
+                }
+                lastVersionCheck = now;
+                try {
+                    if(isModifiedByOthers()){
+                        reload(Collections.<String, Object>emptyMap());
+                    }
+                } catch (PluginException | IOException e) {
+                    throw new HookScriptException("Error while reloading the state", e);
+                }
+            }
+        }
+
+        /**
+         * Return the entries of the state, loaded from the plugin context at
+         * the first access
+         */
+        private Map<String, Object> getEntries() throws HookScriptException{
+            Map<String, Object> currentEntries = this.entries;
+            if(currentEntries != null){
+                return currentEntries;
+            }
+            synchronized (flushLock) {
+                if(this.entries == null){
+                    try {
+                        reload(Collections.<String, Object>emptyMap());
+                    } catch (PluginException | IOException e) {
+                        throw new HookScriptException("Error while loading the state", e);
+                    }
+                }
+                return this.entries;
+            }
+        }
+
+        /**
+         * Load the state from the plugin context and apply the local
+         * modifications which are not yet stored.<br/>
+         * A state stored before the introduction of {@link HookRecordCodec}
+         * is marked as modified so that it is stored again in the new format.
+         * <br/>
+         * Must be called while holding the flush lock.
+         * @param drainedChanges the changes already removed from the pending
+         *            changes by a flush in progress (their local expiration
+         *            dates are kept, the caller applies the changes)
+         */
+        private void reload(Map<String, Object> drainedChanges) throws PluginException, IOException{
+            this.version = getPluginContext().getSharedRecord(getVersionKey());
+            this.lastVersionCheck = System.currentTimeMillis();
+            Object storedState = getPluginContext().getState();
+            if(storedState != null && !HookRecordCodec.isEncoded(storedState)){
+                dirty.set(true);
+            }
+            @SuppressWarnings("unchecked")
+            Map<String, Object> stateObject=(Map<String, Object>) HookRecordCodec.decode(storedState);
+            Map<String, Object> loadedEntries=new ConcurrentHashMap<String, Object>();
+            if(stateObject!=null){
+                loadedEntries.putAll(stateObject);
+            }
+            Map<String, Long> loadedExpirations = new ConcurrentHashMap<String, Long>();
+            Object storedExpirations = loadedEntries.remove(EXPIRATIONS_KEY);
+            if(storedExpirations instanceof Map){
                 @SuppressWarnings("unchecked")
-                Map<String, Object> stateObject=(Map<String, Object>) getPluginContext().getState();
-                if(stateObject==null){
-                    return null;
+                Map<String, Long> storedExpirationMap = (Map<String, Long>) storedExpirations;
+                loadedExpirations.putAll(storedExpirationMap);
+            }
+            keepLocalExpirations(loadedExpirations, drainedChanges.keySet());
+            keepLocalExpirations(loadedExpirations, pendingChanges.keySet());
+            applyChanges(loadedEntries, pendingChanges);
+            this.expirations = loadedExpirations;
+            this.entries = loadedEntries;
+        }
+
+        /**
+         * Replace the loaded expiration dates of the locally modified keys by
+         * the local ones
+         */
+        private void keepLocalExpirations(Map<String, Long> loadedExpirations, Set<String> modifiedKeys){
+            for(String modifiedKey : modifiedKeys){
+                Long expiration = expirations.get(modifiedKey);
+                if(expiration != null){
+                    loadedExpirations.put(modifiedKey, expiration);
+                }else{
+                    loadedExpirations.remove(modifiedKey);
+                }
+            }
+        }
+
+        /**
+         * Remove the expired keys then, if the state is too large, the least
+         * recently used keys (the internal keys are never evicted).<br/>
+         * Must be called while holding the flush lock.
+         */
+        private void enforceLimits() throws HookScriptException{
+            Map<String, Object> currentEntries = getEntries();
+            long now = System.currentTimeMillis();
+            for(Map.Entry<String, Long> expiration : expirations.entrySet()){
+                if(expiration.getValue() <= now){
+                    currentEntries.remove(expiration.getKey());
+                    lastAccesses.remove(expiration.getKey());
+                    expirations.remove(expiration.getKey());
+                }
+            }
+            lastAccesses.keySet().retainAll(currentEntries.keySet());
+            if(maxEntries == 0 && maxBytes == 0){
+                return;
+            }
+            int entryCount = currentEntries.size();
+            long size = getApproximateSize(currentEntries);
+            if((maxEntries == 0 || entryCount <= maxEntries) && (maxBytes == 0 || size <= maxBytes)){
+                return;
+            }
+            List<String> candidates = new ArrayList<String>();
+            for(String key : currentEntries.keySet()){
+                if(!key.startsWith(INTERNAL_KEY_PREFIX)){
+                    candidates.add(key);
+                }
+            }
+            final Map<String, Long> accesses = new HashMap<String, Long>(lastAccesses);
+            Collections.sort(candidates, new Comparator<String>() {
+                @Override
+                public int compare(String key1, String key2) {
+                    return Long.compare(getLastAccess(accesses, key1), getLastAccess(accesses, key2));
                 }
-                return (String) stateObject.get(key);
+            });
+            int evicted = 0;
+            Iterator<String> iterator = candidates.iterator();
+            while(iterator.hasNext() && ((maxEntries != 0 && entryCount > maxEntries) || (maxBytes != 0 && size > maxBytes))){
+                String key = iterator.next();
+                size -= getApproximateSize(key, currentEntries.remove(key));
+                expirations.remove(key);
+                lastAccesses.remove(key);
+                entryCount--;
+                evicted++;
+            }
+            evictions += evicted;
+            getPluginContext().reportMessage(null, false, String.format(
+                    "%d key(s) evicted from the state of the hook script, the state now contains %d key(s) (about %d bytes)", evicted, entryCount, size));
+        }
+
+        private static long getLastAccess(Map<String, Long> accesses, String key){
+            Long lastAccess = accesses.get(key);
+            return lastAccess != null ? lastAccess : 0;
+        }
+
+        private static long getApproximateSize(Map<String, Object> stateEntries){
+            long size = 0;
+            for(Map.Entry<String, Object> entry : stateEntries.entrySet()){
+                size += getApproximateSize(entry.getKey(), entry.getValue());
+            }
+            return size;
+        }
+
+        private static long getApproximateSize(String key, Object value){
+            return key.length() + (value instanceof String ? ((String) value).length() : 0);
+        }
+
+        /**
+         * Return true if the version stamp of the state is not the one of
+         * the local copy
+         */
+        private boolean isModifiedByOthers() throws PluginException{
+            return !Objects.equals(getPluginContext().getSharedRecord(getVersionKey()), this.version);
+        }
+
+        /**
+         * Change the version stamp of the state after a write
+         */
+        private void publishVersion(){
+            String newVersion = UUID.randomUUID().toString();
+            try {
+                getPluginContext().setSharedRecord(getVersionKey(), newVersion);
+                this.version = newVersion;
             } catch (PluginException e) {
-                throw new HookScriptException("Error while storing an object", e);
+                log.error("Unable to publish the version of the state of " + getPluginContext().getPluginConfigurationName(), e);
+            }
+        }
+
+        private static void applyChanges(Map<String, Object> stateEntries, Map<String, Object> changes){
+            for(Map.Entry<String, Object> change : changes.entrySet()){
+                if(change.getValue() == REMOVED){
+                    stateEntries.remove(change.getKey());
+                }else{
+                    stateEntries.put(change.getKey(), change.getValue());
+                }
+            }
+        }
+
+        /**
+         * Mark the state as modified and schedule its persistence
+         */
+        private void modified() throws HookScriptException{
+            dirty.set(true);
+            long delay;
+            synchronized (this) {
+                if(flushInterval == 0){
+                    delay = 0;
+                }else if(flushScheduled){
+                    return;
+                }else{
+                    flushScheduled = true;
+                    delay = flushInterval;
+                }
+            }
+            if(delay == 0){
+                flush();
+                return;
+            }
+            try{
+                scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (HookStateObject.this) {
+                            flushScheduled = false;
+                        }
+                        try {
+                            flush();
+                        } catch (HookScriptException e) {
+                            getPluginContext().reportMessage(null, true, "Unable to store the state of the hook script", e);
+                        }
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            }catch(RejectedExecutionException e){
+                //The scheduler is shut down (the plugin is stopping): store the state now
+                synchronized (this) {
+                    flushScheduled = false;
+                }
+                flush();
             }
         }
 
+        private String getVersionKey() {
+            return VERSION_RECORD_PREFIX + getPluginContext().getPluginConfigurationName();
+        }
+
         private IPluginContext getPluginContext() {
             return pluginContext;
         }
@@ -455,11 +1777,22 @@ public class HookScriptUtils {
     public static class HookWSRequest {
         public static final long MAX_TIMEOUT = 10000l;
         public static final long TOO_LONG_RESPONSE_TIME = 5000l;
+        private String url;
+        private String method = "GET";
+        private String username;
+        private boolean cacheable = false;
+        private Map<String, List<String>> queryParameters = new HashMap<String, List<String>>();
+        private Map<String, String> headers = new HashMap<String, String>();
         private WSRequest wsRequest;
         private IPluginContext pluginContext;
+        private HookWSCache wsCache;
+        private HookWSRateLimiter rateLimiter;
 
-        private HookWSRequest(String url, IPluginContext pluginContext, WSClient wsClient) {
+        private HookWSRequest(String url, IPluginContext pluginContext, WSClient wsClient, HookWSCache wsCache, HookWSRateLimiter rateLimiter) {
+            this.url = url;
             this.pluginContext = pluginContext;
+            this.wsCache = wsCache;
+            this.rateLimiter = rateLimiter;
             this.wsRequest = wsClient.url(url);
         }
 
@@ -474,6 +1807,20 @@ public class HookScriptUtils {
             return this;
         }
 
+        /**
+         * Set a JSON body from a JavaScript object (or a JSON tree).<br/>
+         * The object is serialized by Java (no JSON.stringify is needed) and the
+         * content type is set to application/json.
+         *
+         * @param body
+         *            a JavaScript object or array
+         * @return
+         */
+        public HookWSRequest setJsonBody(Object body) {
+            getWsRequest().setBody(Json.toJson(convertToJavaObject(body)));
+            return this;
+        }
+
         /**
          * Set the HTTP method this request should use, where the no args
          * execute() method is invoked.
@@ -483,6 +1830,7 @@ public class HookScriptUtils {
          * @return
          */
         public HookWSRequest setMethod(String method) {
+            this.method = method;
             getWsRequest().setMethod(method);
             return this;
         }
@@ -496,6 +1844,7 @@ public class HookScriptUtils {
          * @return
          */
         public HookWSRequest setAuth(String username, String password) {
+            this.username = username;
             getWsRequest().setAuth(username, password);
             return this;
         }
@@ -533,6 +1882,12 @@ public class HookScriptUtils {
          * @return
          */
         public HookWSRequest setQueryParameter(String name, String value) {
+            List<String> values = queryParameters.get(name);
+            if (values == null) {
+                values = new ArrayList<String>();
+                queryParameters.put(name, values);
+            }
+            values.add(value);
             getWsRequest().setQueryParameter(name, value);
             return this;
         }
@@ -545,6 +1900,7 @@ public class HookScriptUtils {
          * @return
          */
         public HookWSRequest setHeader(String name, String value) {
+            headers.put(name, value);
             getWsRequest().setHeader(name, value);
             return this;
         }
@@ -577,8 +1933,25 @@ public class HookScriptUtils {
             return this;
         }
 
+        /**
+         * Activate the response cache for this request.<br/>
+         * Only the GET requests are cached. A fresh cached response (see the
+         * Cache-Control max-age header) is returned without any call while a stale
+         * one is revalidated using a conditional request (ETag/Last-Modified).
+         *
+         * @param cacheable
+         *            true if the response cache must be used
+         * @return
+         */
+        public HookWSRequest setCacheable(boolean cacheable) {
+            this.cacheable = cacheable;
+            return this;
+        }
+
         /**
          * Execute the request and callback the provided methods.<br/>
+         * If a rate limit is defined for the target host, the request may be
+         * delayed or rejected (the error callback is then called).
          *
          * @param successCallbackMethod
          *            the JS method to call if the WS call completes normally
@@ -587,15 +1960,103 @@ public class HookScriptUtils {
          */
         public void execute(Object successCallbackMethod, Object errorCallbackMethod) {
             try {
-                final long timestamp = System.currentTimeMillis();
-                Promise<WSResponse> wsResponse = getWsRequest().execute();
-                wsResponse.onRedeem(new Callback<WSResponse>() {
+                final String host = getHost();
+                final String cacheKey = isCached() ? HookWSCache.createKey(url, queryParameters, getCacheKeyHeaders()) : null;
+                final HookWSCache.CachedResponse cachedResponse = isCached() ? getWsCache().get(cacheKey) : null;
+                if (cachedResponse != null) {
+                    if (cachedResponse.isFresh()) {
+                        getWsCache().hit(host);
+                        ((ScriptObjectMirror) successCallbackMethod).call("", new HookWSResponse(cachedResponse));
+                        return;
+                    }
+                    if (cachedResponse.getETag() != null) {
+                        getWsRequest().setHeader("If-None-Match", cachedResponse.getETag());
+                    }
+                    if (cachedResponse.getLastModified() != null) {
+                        getWsRequest().setHeader("If-Modified-Since", cachedResponse.getLastModified());
+                    }
+                }
+                dispatch(successCallbackMethod, errorCallbackMethod, host, cacheKey, cachedResponse, 0);
+            } catch (Exception e) {
+                ((ScriptObjectMirror) errorCallbackMethod).call("", e.getMessage());
+            }
+        }
+
+        /**
+         * Send the request as soon as the rate limiter allows it
+         */
+        private void dispatch(Object successCallbackMethod, Object errorCallbackMethod, String host, String cacheKey,
+                HookWSCache.CachedResponse cachedResponse, int attempt) {
+            long delay = getRateLimiter().reserve(url, host);
+            if (delay < 0) {
+                ((ScriptObjectMirror) errorCallbackMethod).call("", "Rate limit exceeded for " + host + ", the request to " + url + " is rejected");
+                return;
+            }
+            if (delay == 0) {
+                send(successCallbackMethod, errorCallbackMethod, host, cacheKey, cachedResponse, attempt);
+                return;
+            }
+            getRateLimiter().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    send(successCallbackMethod, errorCallbackMethod, host, cacheKey, cachedResponse, attempt);
+                }
+            }, new Runnable() {
+                @Override
+                public void run() {
+                    ((ScriptObjectMirror) errorCallbackMethod).call("", "The plugin is stopped, the request to " + url + " is cancelled");
+                }
+            }, delay);
+        }
+
+        /**
+         * Send the request and handle the response
+         */
+        private void send(Object successCallbackMethod, Object errorCallbackMethod, String host, String cacheKey,
+                HookWSCache.CachedResponse cachedResponse, int attempt) {
+            try {
+                final long timestamp = System.currentTimeMillis();
+                Promise<WSResponse> wsResponse = getWsRequest().execute();
+                wsResponse.onRedeem(new Callback<WSResponse>() {
                     @Override
                     public void invoke(WSResponse response) throws Throwable {
                         if ((System.currentTimeMillis() - timestamp) > TOO_LONG_RESPONSE_TIME) {
                             getPluginContext().log(LogLevel.ERROR,
                                     "WS service call in Notification plugin is taking too much time " + response.getUri().toString());
                         }
+                        if (response.getStatus() == 429) {
+                            long retryAfter = HookWSRateLimiter.parseRetryAfter(response.getHeader("Retry-After"));
+                            if (retryAfter >= 0) {
+                                getRateLimiter().tooManyRequests(url, host, retryAfter);
+                                if (attempt < HookWSRateLimiter.MAX_RETRIES_ON_TOO_MANY_REQUESTS && retryAfter <= HookWSRateLimiter.MAX_QUEUE_DELAY) {
+                                    getRateLimiter().schedule(new Runnable() {
+                                        @Override
+                                        public void run() {
+                                            dispatch(successCallbackMethod, errorCallbackMethod, host, cacheKey, cachedResponse, attempt + 1);
+                                        }
+                                    }, new Runnable() {
+                                        @Override
+                                        public void run() {
+                                            ((ScriptObjectMirror) errorCallbackMethod).call("",
+                                                    "The plugin is stopped, the retry of the request to " + url + " after a 429 response is cancelled");
+                                        }
+                                    }, retryAfter);
+                                    return;
+                                }
+                            }
+                        }
+                        if (cachedResponse != null && response.getStatus() == 304) {
+                            getWsCache().revalidation(host);
+                            getWsCache().revalidated(cachedResponse, response);
+                            ((ScriptObjectMirror) successCallbackMethod).call("", new HookWSResponse(cachedResponse));
+                            return;
+                        }
+                        if (cacheKey != null) {
+                            getWsCache().miss(host);
+                            if (response.getStatus() == 200) {
+                                getWsCache().put(cacheKey, host, response);
+                            }
+                        }
                         ((ScriptObjectMirror) successCallbackMethod).call("", new HookWSResponse(response));
                     }
                 });
@@ -604,6 +2065,37 @@ public class HookScriptUtils {
             }
         }
 
+        /**
+         * Return true if the response cache is to be used for this request
+         */
+        private boolean isCached() {
+            return cacheable && "GET".equalsIgnoreCase(method);
+        }
+
+        /**
+         * The headers which are part of the cache key (the user is added since
+         * two users may not get the same response)
+         */
+        private Map<String, String> getCacheKeyHeaders() {
+            Map<String, String> cacheKeyHeaders = new HashMap<String, String>(headers);
+            if (username != null) {
+                cacheKeyHeaders.put("_user", username);
+            }
+            return cacheKeyHeaders;
+        }
+
+        /**
+         * Return the host targeted by the request
+         */
+        private String getHost() {
+            try {
+                String host = new URI(url).getHost();
+                return host != null ? host : url;
+            } catch (URISyntaxException e) {
+                return url;
+            }
+        }
+
         private WSRequest getWsRequest() {
             return wsRequest;
         }
@@ -611,6 +2103,14 @@ public class HookScriptUtils {
         private IPluginContext getPluginContext() {
             return pluginContext;
         }
+
+        private HookWSCache getWsCache() {
+            return wsCache;
+        }
+
+        private HookWSRateLimiter getRateLimiter() {
+            return rateLimiter;
+        }
     }
 
     /**
@@ -620,19 +2120,46 @@ public class HookScriptUtils {
      */
     public static class HookWSResponse {
         private WSResponse response;
+        private HookWSCache.CachedResponse cachedResponse;
+        private JsonNode json;
 
         private HookWSResponse(WSResponse response) {
             super();
             this.response = response;
         }
 
+        private HookWSResponse(HookWSCache.CachedResponse cachedResponse) {
+            super();
+            this.cachedResponse = cachedResponse;
+        }
+
         /**
          * Gets the body as a string.
          *
          * @return
          */
         public String getBody() {
-            return getResponse().getBody();
+            return isFromCache() ? getCachedResponse().getBody() : getResponse().getBody();
+        }
+
+        /**
+         * Gets the body as a JSON tree (navigable using get, path, size, asText,
+         * etc.).<br/>
+         * The body is parsed once by Java, no JSON.parse is needed.
+         *
+         * @return a JSON tree
+         * @throws HookScriptException
+         *             if the body is not a valid JSON document
+         */
+        public synchronized JsonNode getJson() throws HookScriptException {
+            if (json == null) {
+                try {
+                    json = isFromCache() ? Json.parse(getCachedResponse().getBody()) : getResponse().asJson();
+                } catch (RuntimeException e) {
+                    throw new HookScriptException("The response body is not a valid JSON document", e);
+                }
+            }
+            return json;
         }
 
         /**
@@ -642,7 +2169,7 @@ public class HookScriptUtils {
          * @return
          */
         public String getHeader(String key) {
-            return getResponse().getHeader(key);
+            return isFromCache() ? getCachedResponse().getHeader(key) : getResponse().getHeader(key);
         }
 
         /**
@@ -651,7 +2178,7 @@ public class HookScriptUtils {
          * @return an HTTP code
          */
         public int getStatus() {
-            return getResponse().getStatus();
+            return isFromCache() ? getCachedResponse().getStatus() : getResponse().getStatus();
         }
 
         /**
@@ -660,38 +2187,95 @@ public class HookScriptUtils {
          * @return an HTTP status text
          */
         public String getStatusText() {
-            return getResponse().getStatusText();
+            return isFromCache() ? getCachedResponse().getStatusText() : getResponse().getStatusText();
         }
 
         /**
-         * Gets a single cookie from the response, if any.
+         * Gets a single cookie from the response, if any.<br/>
+         * The cookies are not kept for the responses served from the cache.
          *
          * @param name
          *            cookie name
          * @return a cookie structure
          */
         public WSCookie getCookie(String name) {
-            return getResponse().getCookie(name);
+            return isFromCache() ? null : getResponse().getCookie(name);
+        }
+
+        /**
+         * Return true if the response has been served from the cache
+         */
+        public boolean isFromCache() {
+            return getCachedResponse() != null;
         }
 
         private WSResponse getResponse() {
             return response;
         }
+
+        private HookWSCache.CachedResponse getCachedResponse() {
+            return cachedResponse;
+        }
     }
 
     /**
-     * An object to wrap an SQL query (read only) on a BizDock data object
+     * An object to wrap an SQL query (read only) on a BizDock data object.<br/>
+     * The query can be restricted to some properties ({@link #select(String...)}),
+     * ordered ({@link #orderBy(String)}) and paged ({@link #setFirstRow(int)},
+     * {@link #setMaxRows(int)}).<br/>
+     * Large result sets should be processed one row at a time using
+     * {@link #forEach(HookDataQueryExpression, Object)} while the totals should
+     * be computed by the database using
+     * {@link #aggregate(HookDataQueryExpression, String...)}.
      * @author Pierre-Yves Cloux
      */
     public static class HookDataQuery {
+        public static final int DEFAULT_FETCH_SIZE = 100;
+        private static final Pattern AGGREGATE_PATTERN = Pattern.compile("^\\s*(count|sum|min|max|avg)\\s*\\(\\s*(\\*|[\\w.]+)\\s*\\)\\s*$",
+                Pattern.CASE_INSENSITIVE);
         private Class<?> dataTypeClass;
+        private String selectedProperties;
+        private String orderBy;
+        private int firstRow = 0;
+        private int maxRows = 0;
+        private int fetchSize = DEFAULT_FETCH_SIZE;
+        private String[] groupByProperties = new String[0];
+        private List<FetchPath> fetchPaths = new ArrayList<FetchPath>();
+        private long cacheTimeToLive = 0;
+        private HookLazyLoadTracker lazyLoadTracker;
+        private HookDataQueryCache queryCache;
+        private Map<String, Object> bindings;
 
         /**
          * Creates a Data query
          * @param dataTypeClass a BizDock data object class
+         * @param lazyLoadTracker the tracker of the lazy loads of the current invocation
+         * @param queryCache the cache of the query results
          */
-        private HookDataQuery(Class<?> dataTypeClass) {
+        private HookDataQuery(Class<?> dataTypeClass, HookLazyLoadTracker lazyLoadTracker, HookDataQueryCache queryCache) {
             this.dataTypeClass = dataTypeClass;
+            this.lazyLoadTracker = lazyLoadTracker;
+            this.queryCache = queryCache;
+        }
+
+        /**
+         * Creates a copy of a query template with some parameter values
+         * @param template a query
+         * @param bindings the values of the parameters
+         */
+        private HookDataQuery(HookDataQuery template, Map<String, Object> bindings) {
+            this.dataTypeClass = template.dataTypeClass;
+            this.selectedProperties = template.selectedProperties;
+            this.orderBy = template.orderBy;
+            this.firstRow = template.firstRow;
+            this.maxRows = template.maxRows;
+            this.fetchSize = template.fetchSize;
+            this.groupByProperties = template.groupByProperties;
+            this.fetchPaths = new ArrayList<FetchPath>(template.fetchPaths);
+            this.cacheTimeToLive = template.cacheTimeToLive;
+            this.lazyLoadTracker = template.lazyLoadTracker;
+            this.queryCache = template.queryCache;
+            this.bindings = bindings;
         }
 
         private Class<?> getDataTypeClass() {
@@ -702,6 +2286,175 @@ public class HookScriptUtils {
             return new HookDataQueryExpression();
         }
 
+        /**
+         * Return a named parameter to be used as a value in an expression.
+         * <br/>
+         * The query and the expression can then be prepared once (when the
+         * script is loaded) and executed with different values (see
+         * {@link #bind(Object)}).<br/>
+         * Example: var clause=query.expr().eq("manager.id", query.param("managerId"));
+         * @param name the name of the parameter
+         * @return a parameter
+         */
+        public HookDataQueryParameter param(String name){
+            return new HookDataQueryParameter(name);
+        }
+
+        /**
+         * Return a copy of this query in which the parameters of the
+         * expressions are replaced by the specified values.<br/>
+         * The template is not modified and can be reused.<br/>
+         * Example: query.bind({managerId: 12}).executeQuery(clause)
+         * @param bindings a javascript object (or a java map) associating the parameter names with their values
+         * @return a query
+         */
+        public HookDataQuery bind(Object bindings) throws HookScriptException{
+            Object javaBindings = convertToJavaObject(bindings);
+            if(!(javaBindings instanceof Map)){
+                throw new HookScriptException("An object associating the parameter names with their values is expected");
+            }
+            Map<String, Object> parameterValues = new HashMap<String, Object>();
+            for(Map.Entry<?, ?> binding : ((Map<?, ?>) javaBindings).entrySet()){
+                parameterValues.put(String.valueOf(binding.getKey()), binding.getValue());
+            }
+            return new HookDataQuery(this, parameterValues);
+        }
+
+        /**
+         * Restrict the properties loaded by the query (the id is always loaded).
+         * <br/>
+         * Example: query.select("name", "governanceId")
+         * @param properties some property names
+         * @return the query
+         */
+        public HookDataQuery select(String... properties) {
+            this.selectedProperties = properties == null || properties.length == 0 ? null : String.join(",", properties);
+            return this;
+        }
+
+        /**
+         * Load an association with the objects (join) instead of loading it
+         * lazily for each object.<br/>
+         * Example: query.fetch("manager", "firstName,lastName")
+         * @param path an association path (ex: manager, portfolioEntryType)
+         * @param properties the properties of the association to load (null for all)
+         * @return the query
+         */
+        public HookDataQuery fetch(String path, String properties) {
+            this.fetchPaths.add(new FetchPath(path, properties, false));
+            return this;
+        }
+
+        /**
+         * Load an association with a secondary query (one query for all the
+         * objects), to be preferred for the "many" associations.<br/>
+         * Example: query.fetchQuery("stakeholders", null)
+         * @param path an association path
+         * @param properties the properties of the association to load (null for all)
+         * @return the query
+         */
+        public HookDataQuery fetchQuery(String path, String properties) {
+            this.fetchPaths.add(new FetchPath(path, properties, true));
+            return this;
+        }
+
+        /**
+         * Set the order by clause.<br/>
+         * Example: query.orderBy("name asc, id desc")
+         * @param orderBy an order by clause (property names)
+         * @return the query
+         */
+        public HookDataQuery orderBy(String orderBy) {
+            this.orderBy = orderBy;
+            return this;
+        }
+
+        /**
+         * Set the first row to return (starts at 0)
+         * @param firstRow the index of the first row
+         * @return the query
+         */
+        public HookDataQuery setFirstRow(int firstRow) {
+            this.firstRow = firstRow;
+            return this;
+        }
+
+        /**
+         * Set the maximum number of rows to return (0 means no limit)
+         * @param maxRows a number of rows
+         * @return the query
+         */
+        public HookDataQuery setMaxRows(int maxRows) {
+            this.maxRows = maxRows;
+            return this;
+        }
+
+        /**
+         * Set the fetch size hint passed to the JDBC driver when the rows are
+         * iterated (see {@link #forEach(HookDataQueryExpression, Object)}).<br/>
+         * This is only a hint: some drivers ignore it (ex: the MySQL driver
+         * reads the whole result unless the connection uses a cursor fetch).
+         * @param fetchSize a number of rows
+         * @return the query
+         */
+        public HookDataQuery setFetchSize(int fetchSize) {
+            this.fetchSize = fetchSize;
+            return this;
+        }
+
+        /**
+         * Keep the results of {@link #executeQuery(HookDataQueryExpression)}
+         * in a cache shared by the invocations of the script.<br/>
+         * The results are invalidated after the specified time. In the event
+         * notification plugin, they are also invalidated as soon as an event
+         * is received for an object of the queried data type or of an
+         * association loaded with {@link #fetch(String, String)}. The other
+         * plugins (scheduler, listener) do not receive the events: their
+         * results are only invalidated by the time to live.<br/>
+         * The cached objects are read-only.
+         * @param timeToLiveInSeconds the validity of a result (0 to disable the cache)
+         * @return the query
+         */
+        public HookDataQuery setCacheable(int timeToLiveInSeconds) {
+            this.cacheTimeToLive = Math.max(0, timeToLiveInSeconds) * 1000l;
+            return this;
+        }
+
+        /**
+         * Execute the query and call the callback for each object, one at a
+         * time, without building the list of the objects.<br/>
+         * The JDBC driver may still read the whole result in memory (see
+         * {@link #setFetchSize(int)}).<br/>
+         * If the callback returns false, the iteration is stopped.<br/>
+         * The database cursor is always closed, even if the callback fails.
+         * <br/>
+         * Example: query.forEach(clause, function(pe){ ... });
+         * @param expression an expression
+         * @param callback a JavaScript function receiving an object
+         * @return the number of processed objects
+         */
+        public long forEach(HookDataQueryExpression expression, Object callback) throws HookScriptException{
+            ScriptObjectMirror callbackFunction = (ScriptObjectMirror) callback;
+            long count = 0;
+            QueryIterator<?> iterator = null;
+            try{
+                iterator = createIterationQuery(expression).findIterate();
+                while(iterator.hasNext()){
+                    count++;
+                    if(Boolean.FALSE.equals(callbackFunction.call("", iterator.next()))){
+                        break;
+                    }
+                }
+                return count;
+            }catch(Exception e){
+                throw new HookScriptException("Error while iterating the query at row "+count,e);
+            }finally{
+                if(iterator != null){
+                    iterator.close();
+                }
+            }
+        }
+
         /**
          * Execute the query and return one or more objects
          * @param expression an expression
@@ -709,18 +2462,338 @@ public class HookScriptUtils {
          */
         public List<?> executeQuery(HookDataQueryExpression expression) throws HookScriptException{
             try{
-                return Ebean.createQuery(getDataTypeClass()).where().add(expression.getExpression()).findList();
+                if(cacheTimeToLive > 0){
+                    String cacheKey = createCacheKey(expression);
+                    List<?> objects = queryCache.get(cacheKey);
+                    if(objects == null){
+                        Query<?> query = createQuery(expression);
+                        query.setReadOnly(true);
+                        objects = queryCache.put(cacheKey, getWatchedDataTypeClassNames(), query.findList(), cacheTimeToLive);
+                    }
+                    lazyLoadTracker.track(objects);
+                    return objects;
+                }
+                List<?> objects = createQuery(expression).findList();
+                lazyLoadTracker.track(objects);
+                return objects;
             }catch(Exception e){
                 throw new HookScriptException("Error while executing the query",e);
             }
         }
+
+        /**
+         * Return the number of objects matching the expression (the paging
+         * parameters are ignored)
+         * @param expression an expression
+         * @return a number of objects
+         */
+        public int findCount(HookDataQueryExpression expression) throws HookScriptException{
+            try{
+                Query<?> query = Ebean.createQuery(getDataTypeClass());
+                if(expression != null && expression.getExpression(bindings) != null){
+                    query.where().add(expression.getExpression(bindings));
+                }
+                return query.findRowCount();
+            }catch(Exception e){
+                throw new HookScriptException("Error while counting the objects",e);
+            }
+        }
+
+        /**
+         * Set the properties used to group the results of the aggregate
+         * queries.<br/>
+         * Example: query.groupBy("portfolioEntry.id")
+         * @param properties some property names (properties of the object or
+         *            ids of its associations)
+         * @return the query
+         */
+        public HookDataQuery groupBy(String... properties) {
+            this.groupByProperties = properties != null ? properties : new String[0];
+            return this;
+        }
+
+        /**
+         * Compute some aggregates in the database.<br/>
+         * Example: query.groupBy("portfolioEntry.id").aggregate(clause, "sum(amount)", "count(*)")
+         * returns a list of maps {"portfolioEntry.id":..., "sum(amount)":..., "count(*)":...}
+         * (one map per group, a single map if there is no group by).<br/>
+         * The supported functions are count, sum, min, max and avg. The
+         * properties (including the ones of the expression) must be properties
+         * of the object or ids of its associations.
+         * @param expression an expression (may be null)
+         * @param aggregates some aggregates
+         * @return a list of maps
+         */
+        public List<Map<String, Object>> aggregate(HookDataQueryExpression expression, String... aggregates) throws HookScriptException{
+            if(aggregates == null || aggregates.length == 0){
+                throw new HookScriptException("At least one aggregate is required");
+            }
+            BeanDescriptor<?> descriptor = ((SpiEbeanServer) Ebean.getServer(null)).getBeanDescriptor(getDataTypeClass());
+            StringBuilder sql = new StringBuilder("select ");
+            StringBuilder groupByClause = new StringBuilder();
+            for(int i = 0; i < groupByProperties.length; i++){
+                String column = getColumnName(descriptor, groupByProperties[i]);
+                sql.append(column).append(" as g").append(i).append(", ");
+                groupByClause.append(i == 0 ? " group by " : ", ").append(column);
+            }
+            for(int i = 0; i < aggregates.length; i++){
+                Matcher matcher = AGGREGATE_PATTERN.matcher(aggregates[i]);
+                if(!matcher.matches() || (matcher.group(2).equals("*") && !matcher.group(1).equalsIgnoreCase("count"))){
+                    throw new HookScriptException("Invalid aggregate " + aggregates[i]);
+                }
+                String column = matcher.group(2).equals("*") ? "*" : getColumnName(descriptor, matcher.group(2));
+                sql.append(i == 0 ? "" : ", ").append(matcher.group(1).toLowerCase()).append('(').append(column).append(") as a").append(i);
+            }
+            sql.append(" from ").append(descriptor.getBaseTable());
+            List<Object> parameters = new ArrayList<Object>();
+            if(expression != null && !expression.isEmpty()){
+                sql.append(" where ");
+                expression.appendSql(sql, parameters, descriptor, bindings);
+            }
+            sql.append(groupByClause);
+            try{
+                SqlQuery sqlQuery = Ebean.createSqlQuery(sql.toString());
+                for(int i = 0; i < parameters.size(); i++){
+                    sqlQuery.setParameter(i + 1, parameters.get(i));
+                }
+                List<Map<String, Object>> results = new ArrayList<Map<String, Object>>();
+                for(SqlRow row : sqlQuery.findList()){
+                    Map<String, Object> result = new LinkedHashMap<String, Object>();
+                    for(int i = 0; i < groupByProperties.length; i++){
+                        result.put(groupByProperties[i], row.get("g" + i));
+                    }
+                    for(int i = 0; i < aggregates.length; i++){
+                        result.put(aggregates[i].trim(), row.get("a" + i));
+                    }
+                    results.add(result);
+                }
+                return results;
+            }catch(Exception e){
+                throw new HookScriptException("Error while executing the aggregate query",e);
+            }
+        }
+
+        /**
+         * Count the objects in the database (see {@link #aggregate(HookDataQueryExpression, String...)})
+         * @param expression an expression (may be null)
+         * @return a list of maps with a "count(*)" entry
+         */
+        public List<Map<String, Object>> count(HookDataQueryExpression expression) throws HookScriptException{
+            return aggregate(expression, "count(*)");
+        }
+
+        /**
+         * Sum a property in the database (see {@link #aggregate(HookDataQueryExpression, String...)})
+         * @param property a property name
+         * @param expression an expression (may be null)
+         * @return a list of maps with a "sum(property)" entry
+         */
+        public List<Map<String, Object>> sum(String property, HookDataQueryExpression expression) throws HookScriptException{
+            return aggregate(expression, "sum(" + property + ")");
+        }
+
+        /**
+         * Minimum of a property in the database (see {@link #aggregate(HookDataQueryExpression, String...)})
+         * @param property a property name
+         * @param expression an expression (may be null)
+         * @return a list of maps with a "min(property)" entry
+         */
+        public List<Map<String, Object>> min(String property, HookDataQueryExpression expression) throws HookScriptException{
+            return aggregate(expression, "min(" + property + ")");
+        }
+
+        /**
+         * Maximum of a property in the database (see {@link #aggregate(HookDataQueryExpression, String...)})
+         * @param property a property name
+         * @param expression an expression (may be null)
+         * @return a list of maps with a "max(property)" entry
+         */
+        public List<Map<String, Object>> max(String property, HookDataQueryExpression expression) throws HookScriptException{
+            return aggregate(expression, "max(" + property + ")");
+        }
+
+        /**
+         * Average of a property in the database (see {@link #aggregate(HookDataQueryExpression, String...)})
+         * @param property a property name
+         * @param expression an expression (may be null)
+         * @return a list of maps with an "avg(property)" entry
+         */
+        public List<Map<String, Object>> avg(String property, HookDataQueryExpression expression) throws HookScriptException{
+            return aggregate(expression, "avg(" + property + ")");
+        }
+
+        /**
+         * Return the database column associated with a property.<br/>
+         * Only the properties of the object and the ids of its associations
+         * (ex: portfolioEntry.id) are supported.
+         * @param descriptor the descriptor of the queried object
+         * @param propertyName a property name
+         * @return a column name
+         */
+        private static String getColumnName(BeanDescriptor<?> descriptor, String propertyName) throws HookScriptException {
+            String[] path = propertyName.split("\\.");
+            BeanProperty property = descriptor.findProperty(path[0]);
+            if (property != null && !property.isTransient() && !property.isFormula() && !(property instanceof BeanPropertyAssocMany)) {
+                if (path.length == 1) {
+                    return property.getDbColumn();
+                }
+                if (path.length == 2 && property instanceof BeanPropertyAssocOne
+                        && ((BeanPropertyAssocOne<?>) property).getTargetDescriptor().getIdProperty().getName().equals(path[1])) {
+                    return property.getDbColumn();
+                }
+            }
+            throw new HookScriptException("The property " + propertyName + " cannot be used in an aggregate query on " + descriptor.getName());
+        }
+
+        /**
+         * Create an Ebean query to be iterated
+         * @param expression an expression (may be null)
+         */
+        private Query<?> createIterationQuery(HookDataQueryExpression expression) {
+            Query<?> query = createQuery(expression);
+            if(fetchSize > 0){
+                query.setBufferFetchSizeHint(fetchSize);
+            }
+            return query;
+        }
+
+        /**
+         * Create a key identifying the query and the expression in the cache
+         * @param expression an expression (may be null)
+         */
+        private String createCacheKey(HookDataQueryExpression expression) {
+            StringBuilder key = new StringBuilder(getDataTypeClass().getName());
+            key.append("|select:").append(selectedProperties);
+            for(FetchPath fetchPath : fetchPaths){
+                key.append("|fetch:").append(fetchPath.getPath()).append('(').append(fetchPath.getProperties()).append(')');
+                key.append(fetchPath.isSecondaryQuery() ? "query" : "join");
+            }
+            key.append("|where:");
+            if(expression != null){
+                expression.appendCacheKey(key, bindings);
+            }
+            key.append("|order:").append(orderBy);
+            key.append("|rows:").append(firstRow).append(',').append(maxRows);
+            return key.toString();
+        }
+
+        /**
+         * Return the names of the classes of the queried objects and of the
+         * fetched associations (a cached result is invalidated when one of
+         * them is modified)
+         */
+        private Set<String> getWatchedDataTypeClassNames() {
+            Set<String> classNames = new HashSet<String>();
+            classNames.add(getDataTypeClass().getName());
+            for(FetchPath fetchPath : fetchPaths){
+                Class<?> associationClass = getDataTypeClass();
+                for(String propertyName : fetchPath.getPath().split("\\.")){
+                    associationClass = getAssociationClass(associationClass, propertyName);
+                    if(associationClass == null){
+                        break;
+                    }
+                    classNames.add(associationClass.getName());
+                }
+            }
+            return classNames;
+        }
+
+        /**
+         * Return the class of the objects of an association (the element
+         * class for a "many" association) or null if it cannot be found
+         * @param beanClass the class owning the association
+         * @param propertyName the name of the association
+         */
+        private Class<?> getAssociationClass(Class<?> beanClass, String propertyName) {
+            for(Class<?> currentClass = beanClass; currentClass != null; currentClass = currentClass.getSuperclass()){
+                try{
+                    Field field = currentClass.getDeclaredField(propertyName);
+                    if(!Collection.class.isAssignableFrom(field.getType())){
+                        return field.getType();
+                    }
+                    Type genericType = field.getGenericType();
+                    if(genericType instanceof ParameterizedType){
+                        Type elementType = ((ParameterizedType) genericType).getActualTypeArguments()[0];
+                        return elementType instanceof Class ? (Class<?>) elementType : null;
+                    }
+                    return null;
+                }catch(NoSuchFieldException e){
+                    // look in the super class
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Create an Ebean query with the select, order and paging parameters
+         * @param expression an expression (may be null)
+         */
+        private Query<?> createQuery(HookDataQueryExpression expression) {
+            Query<?> query = Ebean.createQuery(getDataTypeClass());
+            if(selectedProperties != null){
+                query.select(selectedProperties);
+            }
+            for(FetchPath fetchPath : fetchPaths){
+                if(fetchPath.isSecondaryQuery()){
+                    query.fetch(fetchPath.getPath(), fetchPath.getProperties(), new FetchConfig().query());
+                }else{
+                    query.fetch(fetchPath.getPath(), fetchPath.getProperties());
+                }
+            }
+            if(expression != null && expression.getExpression(bindings) != null){
+                query.where().add(expression.getExpression(bindings));
+            }
+            if(orderBy != null){
+                query.orderBy(orderBy);
+            }
+            if(firstRow > 0){
+                query.setFirstRow(firstRow);
+            }
+            if(maxRows > 0){
+                query.setMaxRows(maxRows);
+            }
+            return query;
+        }
+
+        /**
+         * An association to be loaded with the objects
+         */
+        private static class FetchPath {
+            private String path;
+            private String properties;
+            private boolean secondaryQuery;
+
+            private FetchPath(String path, String properties, boolean secondaryQuery) {
+                this.path = path;
+                this.properties = properties;
+                this.secondaryQuery = secondaryQuery;
+            }
+
+            private String getPath() {
+                return path;
+            }
+
+            private String getProperties() {
+                return properties;
+            }
+
+            private boolean isSecondaryQuery() {
+                return secondaryQuery;
+            }
+        }
     }
 
     /**
-     * An expression to be used with a {@link HookDataQuery}
+     * An expression to be used with a {@link HookDataQuery}.<br/>
+     * The expression is kept as a tree which is converted into an Ebean
+     * expression or into an SQL where clause (aggregate queries).
      * @author Pierre-Yves Cloux
      */
     public static class HookDataQueryExpression {
+        private Operator operator;
+        private String propertyName;
+        private Object[] values;
+        private HookDataQueryExpression[] operands;
         private Expression expression;
 
         public HookDataQueryExpression() {
@@ -735,8 +2808,7 @@ public class HookScriptUtils {
          * @return
          */
         public HookDataQueryExpression and(HookDataQueryExpression exprOne, HookDataQueryExpression exprTwo) {
-            this.expression = Expr.and(exprOne.getExpression(), exprTwo.getExpression());
-            return this;
+            return setNode(Operator.AND, null, null, exprOne, exprTwo);
         }
 
         /**
@@ -746,8 +2818,7 @@ public class HookScriptUtils {
          * @return
          */
         public HookDataQueryExpression not(HookDataQueryExpression exprToNegate) {
-            this.expression = Expr.not(exprToNegate.getExpression());
-            return this;
+            return setNode(Operator.NOT, null, null, exprToNegate);
         }
 
         /**
@@ -759,8 +2830,7 @@ public class HookScriptUtils {
          * @return
          */
         public HookDataQueryExpression between(String propertyName, Object value1, Object value2) {
-            this.expression = Expr.between(propertyName, convertFromScriptObject(value1), convertFromScriptObject(value2));
-            return this;
+            return setNode(Operator.BETWEEN, propertyName, new Object[] { convertFromScriptObject(value1), convertFromScriptObject(value2) });
         }
 
         /**
@@ -771,8 +2841,7 @@ public class HookScriptUtils {
          * @return
          */
         public HookDataQueryExpression eq(String propertyName, Object value) {
-            this.expression = Expr.eq(propertyName, convertFromScriptObject(value));
-            return this;
+            return setNode(Operator.EQ, propertyName, new Object[] { convertFromScriptObject(value) });
         }
 
         /**
@@ -784,8 +2853,7 @@ public class HookScriptUtils {
          * @return
          */
         public HookDataQueryExpression ge(String propertyName, Object value) {
-            this.expression = Expr.ge(propertyName, convertFromScriptObject(value));
-            return this;
+            return setNode(Operator.GE, propertyName, new Object[] { convertFromScriptObject(value) });
         }
 
         /**
@@ -796,8 +2864,7 @@ public class HookScriptUtils {
          * @return
          */
         public HookDataQueryExpression gt(String propertyName, Object value) {
-            this.expression = Expr.gt(propertyName, convertFromScriptObject(value));
-            return this;
+            return setNode(Operator.GT, propertyName, new Object[] { convertFromScriptObject(value) });
         }
 
         /**
@@ -808,8 +2875,7 @@ public class HookScriptUtils {
          * @return
          */
         public HookDataQueryExpression lt(String propertyName, Object value) {
-            this.expression = Expr.lt(propertyName, convertFromScriptObject(value));
-            return this;
+            return setNode(Operator.LT, propertyName, new Object[] { convertFromScriptObject(value) });
         }
 
         /**
@@ -820,8 +2886,7 @@ public class HookScriptUtils {
          * @return
          */
         public HookDataQueryExpression le(String propertyName, Object value) {
-            this.expression = Expr.le(propertyName, convertFromScriptObject(value));
-            return this;
+            return setNode(Operator.LE, propertyName, new Object[] { convertFromScriptObject(value) });
         }
 
         /**
@@ -832,9 +2897,8 @@ public class HookScriptUtils {
          * @param value
          * @return
          */
-        public HookDataQueryExpression like(String propertyName, String value) {
-            this.expression = Expr.like(propertyName, value);
-            return this;
+        public HookDataQueryExpression like(String propertyName, Object value) {
+            return setNode(Operator.LIKE, propertyName, new Object[] { value == null || value instanceof HookDataQueryParameter ? value : value.toString() });
         }
 
         /**
@@ -845,12 +2909,252 @@ public class HookScriptUtils {
          * @return
          */
         public HookDataQueryExpression or(HookDataQueryExpression exprOne, HookDataQueryExpression exprTwo) {
-            this.expression = Expr.or(exprOne.getExpression(), exprTwo.getExpression());
+            return setNode(Operator.OR, null, null, exprOne, exprTwo);
+        }
+
+        /**
+         * Define the node of the expression.<br/>
+         * The operands are copied (before this expression is modified) so
+         * that a later modification of an operand, or an expression used as
+         * its own operand, does not change this expression.
+         */
+        private HookDataQueryExpression setNode(Operator operator, String propertyName, Object[] values, HookDataQueryExpression... operands) {
+            HookDataQueryExpression[] operandCopies = new HookDataQueryExpression[operands.length];
+            for (int i = 0; i < operands.length; i++) {
+                operandCopies[i] = operands[i] == null ? null : operands[i].copy();
+            }
+            this.operator = operator;
+            this.propertyName = propertyName;
+            this.values = values;
+            this.operands = operandCopies;
+            this.expression = null;
             return this;
         }
 
-        private Expression getExpression() {
-            return expression;
+        /**
+         * Return a copy of the current node of the expression.<br/>
+         * The values and the operands are shared: they are never modified
+         * (setNode replaces them and the operands are already copies).
+         */
+        private HookDataQueryExpression copy() {
+            HookDataQueryExpression copy = new HookDataQueryExpression();
+            copy.operator = this.operator;
+            copy.propertyName = this.propertyName;
+            copy.values = this.values;
+            copy.operands = this.operands;
+            copy.expression = this.expression;
+            return copy;
+        }
+
+        /**
+         * Return true if the expression has not been defined
+         */
+        private boolean isEmpty() {
+            return operator == null;
+        }
+
+        /**
+         * Return true if the expression (or one of its operands) contains a
+         * {@link HookDataQueryParameter}
+         */
+        private boolean isParameterized() {
+            if (values != null) {
+                for (Object value : values) {
+                    if (value instanceof HookDataQueryParameter) {
+                        return true;
+                    }
+                }
+            }
+            if (operands != null) {
+                for (HookDataQueryExpression operand : operands) {
+                    if (operand.isParameterized()) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Return the Ebean expression matching this expression (null if the
+         * expression is empty).<br/>
+         * The expressions without any parameter are built only once.
+         * @param bindings the values of the parameters (may be null)
+         */
+        private Expression getExpression(Map<String, Object> bindings) {
+            if (operator == null) {
+                return null;
+            }
+            if (!isParameterized()) {
+                if (expression == null) {
+                    expression = operator.toExpression(propertyName, values, operands, bindings);
+                }
+                return expression;
+            }
+            return operator.toExpression(propertyName, resolveValues(bindings), operands, bindings);
+        }
+
+        /**
+         * Replace the parameters by their values
+         * @param bindings the values of the parameters (may be null)
+         */
+        private Object[] resolveValues(Map<String, Object> bindings) {
+            if (values == null) {
+                return null;
+            }
+            Object[] resolvedValues = new Object[values.length];
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] instanceof HookDataQueryParameter) {
+                    String name = ((HookDataQueryParameter) values[i]).getName();
+                    if (bindings == null || !bindings.containsKey(name)) {
+                        throw new IllegalArgumentException("No value bound to the parameter " + name);
+                    }
+                    resolvedValues[i] = bindings.get(name);
+                } else {
+                    resolvedValues[i] = values[i];
+                }
+            }
+            return resolvedValues;
+        }
+
+        /**
+         * Append a normalized representation of this expression to a cache
+         * key (the operands of "and" and "or" are sorted)
+         * @param key a cache key
+         */
+        void appendCacheKey(StringBuilder key, Map<String, Object> bindings) {
+            if (operator == null) {
+                return;
+            }
+            key.append(operator.name()).append('(');
+            if (operator == Operator.AND || operator == Operator.OR) {
+                List<String> operandKeys = new ArrayList<String>();
+                for (HookDataQueryExpression operand : operands) {
+                    StringBuilder operandKey = new StringBuilder();
+                    operand.appendCacheKey(operandKey, bindings);
+                    operandKeys.add(operandKey.toString());
+                }
+                Collections.sort(operandKeys);
+                key.append(String.join(",", operandKeys));
+            } else if (operator == Operator.NOT) {
+                operands[0].appendCacheKey(key, bindings);
+            } else {
+                key.append(propertyName);
+                for (Object value : resolveValues(bindings)) {
+                    key.append(',');
+                    if (value == null) {
+                        key.append("null");
+                    } else if (value instanceof Date) {
+                        key.append("date:").append(((Date) value).getTime());
+                    } else {
+                        key.append(value.getClass().getSimpleName()).append(':').append(value);
+                    }
+                }
+            }
+            key.append(')');
+        }
+
+        /**
+         * Append this expression to an SQL where clause
+         * @param sql the SQL statement
+         * @param parameters the positional parameters of the statement
+         * @param descriptor the descriptor of the queried object
+         */
+        private void appendSql(StringBuilder sql, List<Object> parameters, BeanDescriptor<?> descriptor, Map<String, Object> bindings)
+                throws HookScriptException {
+            Object[] resolvedValues = resolveValues(bindings);
+            switch (operator) {
+            case AND:
+            case OR:
+                sql.append('(');
+                operands[0].appendSql(sql, parameters, descriptor, bindings);
+                sql.append(operator == Operator.AND ? ") and (" : ") or (");
+                operands[1].appendSql(sql, parameters, descriptor, bindings);
+                sql.append(')');
+                break;
+            case NOT:
+                sql.append("not (");
+                operands[0].appendSql(sql, parameters, descriptor, bindings);
+                sql.append(')');
+                break;
+            case BETWEEN:
+                sql.append(HookDataQuery.getColumnName(descriptor, propertyName)).append(" between ? and ?");
+                parameters.add(resolvedValues[0]);
+                parameters.add(resolvedValues[1]);
+                break;
+            case EQ:
+                if (resolvedValues[0] == null) {
+                    sql.append(HookDataQuery.getColumnName(descriptor, propertyName)).append(" is null");
+                    break;
+                }
+            default:
+                sql.append(HookDataQuery.getColumnName(descriptor, propertyName)).append(' ').append(operator.getSqlOperator()).append(" ?");
+                parameters.add(resolvedValues[0]);
+                break;
+            }
+        }
+
+        /**
+         * The operators supported by an expression
+         */
+        private enum Operator {
+            AND(null), OR(null), NOT(null), BETWEEN(null), EQ("="), GE(">="), GT(">"), LT("<"), LE("<="), LIKE("like");
+
+            private String sqlOperator;
+
+            private Operator(String sqlOperator) {
+                this.sqlOperator = sqlOperator;
+            }
+
+            private String getSqlOperator() {
+                return sqlOperator;
+            }
+
+            private Expression toExpression(String propertyName, Object[] values, HookDataQueryExpression[] operands, Map<String, Object> bindings) {
+                switch (this) {
+                case AND:
+                    return Expr.and(operands[0].getExpression(bindings), operands[1].getExpression(bindings));
+                case OR:
+                    return Expr.or(operands[0].getExpression(bindings), operands[1].getExpression(bindings));
+                case NOT:
+                    return Expr.not(operands[0].getExpression(bindings));
+                case BETWEEN:
+                    return Expr.between(propertyName, values[0], values[1]);
+                case EQ:
+                    return Expr.eq(propertyName, values[0]);
+                case GE:
+                    return Expr.ge(propertyName, values[0]);
+                case GT:
+                    return Expr.gt(propertyName, values[0]);
+                case LT:
+                    return Expr.lt(propertyName, values[0]);
+                case LE:
+                    return Expr.le(propertyName, values[0]);
+                default:
+                    return Expr.like(propertyName, values[0] == null ? null : values[0].toString());
+                }
+            }
+        }
+    }
+
+    /**
+     * A named parameter of a {@link HookDataQueryExpression} (see
+     * {@link HookDataQuery#param(String)})
+     */
+    public static class HookDataQueryParameter {
+        private String name;
+
+        private HookDataQueryParameter(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String toString() {
+            return ":" + name;
         }
     }
 }
@@ -0,0 +1,527 @@
+package services.plugins.system;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import framework.services.plugins.api.IPluginContext;
+import framework.services.plugins.api.PluginException;
+import play.Logger;
+import play.libs.ws.WSResponse;
+
+/**
+ * A bounded (LRU) cache for the responses of the GET requests performed by the
+ * hook scripts.<br/>
+ * The cache honours the Cache-Control max-age directive and keeps the ETag and
+ * Last-Modified validators so that stale entries are revalidated using
+ * conditional requests.<br/>
+ * If requested, the entries evicted from the memory are spilled to the shared
+ * storage of the plugins. The spilled records are listed in an index (also
+ * stored in the shared storage) and deleted when they are loaded back into
+ * the memory, when they are expired (and cannot be revalidated), when there
+ * are more than {@link #SPILLED_ENTRIES_PER_ENTRY} times the maximum number
+ * of entries (the eldest first) and when the spill is disabled.
+ */
+public class HookWSCache {
+    private static Logger.ALogger log = Logger.of(HookWSCache.class);
+
+    public static final int DEFAULT_MAX_ENTRIES = 200;
+    public static final int SPILLED_ENTRIES_PER_ENTRY = 10;
+    private static final String SHARED_RECORD_PREFIX = "hookwscache.";
+    private static final String SPILL_INDEX_PREFIX = SHARED_RECORD_PREFIX + "index.";
+
+    private IPluginContext pluginContext;
+    private int maxEntries = DEFAULT_MAX_ENTRIES;
+    private boolean spillToSharedStorage = false;
+    private LinkedHashMap<String, CachedResponse> entries;
+    private Map<String, HostStatistics> statistics;
+    private Object spillLock = new Object();
+    private LinkedHashMap<String, Long> spilledRecords;
+
+    public HookWSCache(IPluginContext pluginContext) {
+        this.pluginContext = pluginContext;
+        this.entries = new LinkedHashMap<String, CachedResponse>(16, 0.75f, true);
+        this.statistics = new HashMap<String, HostStatistics>();
+    }
+
+    /**
+     * Configure the cache
+     * @param maxEntries the maximum number of responses kept in memory
+     * @param spillToSharedStorage true if the responses evicted from the memory must be stored in the shared storage
+     */
+    public void configure(int maxEntries, boolean spillToSharedStorage) {
+        List<CachedResponse> evicted;
+        synchronized (this) {
+            this.maxEntries = maxEntries < 1 ? 1 : maxEntries;
+            this.spillToSharedStorage = spillToSharedStorage;
+            evicted = evict();
+        }
+        if (spillToSharedStorage) {
+            spill(evicted);
+        } else {
+            deleteSpilledRecords();
+        }
+    }
+
+    /**
+     * Return the response associated with the specified key (or null if none is found)
+     * @param key a cache key (see {@link #createKey(String, Map, Map)})
+     * @return a cached response
+     */
+    public CachedResponse get(String key) {
+        synchronized (this) {
+            CachedResponse cachedResponse = getEntries().get(key);
+            if (cachedResponse != null || !isSpillToSharedStorage()) {
+                return cachedResponse;
+            }
+        }
+        Object record = unspill(key);
+        if (record instanceof CachedResponse) {
+            CachedResponse cachedResponse = (CachedResponse) record;
+            if (cachedResponse.isFresh() || cachedResponse.getETag() != null || cachedResponse.getLastModified() != null) {
+                List<CachedResponse> evicted;
+                synchronized (this) {
+                    getEntries().put(key, cachedResponse);
+                    evicted = evict();
+                }
+                spill(evicted);
+                return cachedResponse;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Store the specified response if its headers allow it
+     * @param key a cache key
+     * @param host the host which is called
+     * @param response a WS response
+     * @return the cached response or null if the response is not cacheable
+     */
+    public CachedResponse put(String key, String host, WSResponse response) {
+        CacheControl cacheControl = new CacheControl(response.getHeader("Cache-Control"));
+        String eTag = response.getHeader("ETag");
+        String lastModified = response.getHeader("Last-Modified");
+        if (cacheControl.isNoStore() || (cacheControl.getMaxAge() <= 0 && eTag == null && lastModified == null)) {
+            return null;
+        }
+        CachedResponse cachedResponse = new CachedResponse(key, host, response, eTag, lastModified, cacheControl.getExpirationDate());
+        List<CachedResponse> evicted;
+        synchronized (this) {
+            getEntries().put(key, cachedResponse);
+            evicted = evict();
+        }
+        spill(evicted);
+        return cachedResponse;
+    }
+
+    /**
+     * Update the expiration date of an entry which has been revalidated by the
+     * server (304 response)
+     * @param cachedResponse a cached response
+     * @param response the 304 response returned by the server
+     */
+    public void revalidated(CachedResponse cachedResponse, WSResponse response) {
+        String cacheControlHeader = response.getHeader("Cache-Control");
+        if (cacheControlHeader == null) {
+            cacheControlHeader = cachedResponse.getHeader("Cache-Control");
+        }
+        cachedResponse.setExpirationDate(new CacheControl(cacheControlHeader).getExpirationDate());
+    }
+
+    /**
+     * Record a cache hit (the response was served from the cache without any call)
+     * @param host a host name
+     */
+    public synchronized void hit(String host) {
+        getHostStatistics(host).hits++;
+    }
+
+    /**
+     * Record a cache miss (the response has been fully downloaded)
+     * @param host a host name
+     */
+    public synchronized void miss(String host) {
+        getHostStatistics(host).misses++;
+    }
+
+    /**
+     * Record a revalidation (the server returned a 304 response)
+     * @param host a host name
+     */
+    public synchronized void revalidation(String host) {
+        getHostStatistics(host).revalidations++;
+    }
+
+    /**
+     * Return the hit/miss statistics per host
+     * @return a map (host, (statistic name, value))
+     */
+    public synchronized Map<String, Map<String, Long>> getStatistics() {
+        Map<String, Map<String, Long>> result = new TreeMap<String, Map<String, Long>>();
+        for (Map.Entry<String, HostStatistics> entry : statistics.entrySet()) {
+            Map<String, Long> hostStatistics = new LinkedHashMap<String, Long>();
+            hostStatistics.put("hits", entry.getValue().hits);
+            hostStatistics.put("revalidations", entry.getValue().revalidations);
+            hostStatistics.put("misses", entry.getValue().misses);
+            result.put(entry.getKey(), hostStatistics);
+        }
+        return result;
+    }
+
+    /**
+     * Creates a cache key for a request
+     * @param url the request URL
+     * @param queryParameters the query parameters
+     * @param headers the request headers
+     * @return a String key
+     */
+    public static String createKey(String url, Map<String, List<String>> queryParameters, Map<String, String> headers) {
+        StringBuilder key = new StringBuilder("GET ").append(url);
+        for (Map.Entry<String, List<String>> queryParameter : new TreeMap<String, List<String>>(queryParameters).entrySet()) {
+            for (String value : queryParameter.getValue()) {
+                key.append('&').append(queryParameter.getKey()).append('=').append(value);
+            }
+        }
+        for (Map.Entry<String, String> header : new TreeMap<String, String>(headers).entrySet()) {
+            key.append('\n').append(header.getKey()).append(':').append(header.getValue());
+        }
+        return key.toString();
+    }
+
+    /**
+     * Remove the eldest entries if the cache is too large.<br/>
+     * Must be called in a synchronized block.
+     * @return the evicted entries
+     */
+    private List<CachedResponse> evict() {
+        List<CachedResponse> evicted = new ArrayList<CachedResponse>();
+        Iterator<CachedResponse> iterator = getEntries().values().iterator();
+        while (getEntries().size() > getMaxEntries() && iterator.hasNext()) {
+            evicted.add(iterator.next());
+            iterator.remove();
+        }
+        return evicted;
+    }
+
+    /**
+     * Store the evicted entries into the shared storage (if configured) and
+     * delete the spilled records which are expired or in excess
+     * @param evicted a list of evicted entries
+     */
+    private void spill(List<CachedResponse> evicted) {
+        if (evicted.isEmpty() || !isSpillToSharedStorage()) {
+            return;
+        }
+        synchronized (spillLock) {
+            LinkedHashMap<String, Long> records = getSpilledRecords();
+            for (CachedResponse cachedResponse : evicted) {
+                String sharedRecordKey = getSharedRecordKey(cachedResponse.getKey());
+                try {
+                    getPluginContext().setSharedRecord(sharedRecordKey, cachedResponse);
+                    records.remove(sharedRecordKey);
+                    records.put(sharedRecordKey, cachedResponse.getUselessAfter());
+                } catch (PluginException e) {
+                    log.error("Unable to spill a WS response to the shared storage", e);
+                }
+            }
+            long now = System.currentTimeMillis();
+            int maxSpilledRecords = getMaxSpilledRecords();
+            Iterator<Map.Entry<String, Long>> iterator = records.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Long> record = iterator.next();
+                if (record.getValue() <= now || records.size() > maxSpilledRecords) {
+                    deleteSharedRecord(record.getKey());
+                    iterator.remove();
+                }
+            }
+            saveSpilledRecords();
+        }
+    }
+
+    /**
+     * Remove a response from the shared storage in order to load it back
+     * into the memory
+     * @param key a cache key
+     * @return the stored record (null if none is found)
+     */
+    private Object unspill(String key) {
+        String sharedRecordKey = getSharedRecordKey(key);
+        synchronized (spillLock) {
+            if (!getSpilledRecords().containsKey(sharedRecordKey)) {
+                return null;
+            }
+            Object record = null;
+            try {
+                record = getPluginContext().getSharedRecord(sharedRecordKey);
+            } catch (PluginException e) {
+                log.error("Unable to read a WS response from the shared storage", e);
+            }
+            deleteSharedRecord(sharedRecordKey);
+            getSpilledRecords().remove(sharedRecordKey);
+            saveSpilledRecords();
+            return record;
+        }
+    }
+
+    /**
+     * Delete all the spilled records (the spill is disabled)
+     */
+    private void deleteSpilledRecords() {
+        synchronized (spillLock) {
+            LinkedHashMap<String, Long> records = getSpilledRecords();
+            if (records.isEmpty()) {
+                return;
+            }
+            for (String sharedRecordKey : records.keySet()) {
+                deleteSharedRecord(sharedRecordKey);
+            }
+            records.clear();
+            saveSpilledRecords();
+        }
+    }
+
+    /**
+     * Return the index of the spilled records (shared record key, date after
+     * which the record is useless), loaded from the shared storage on the
+     * first call so that the records spilled before a restart are managed.<br/>
+     * Must be called in a block synchronized on the spill lock.
+     */
+    @SuppressWarnings("unchecked")
+    private LinkedHashMap<String, Long> getSpilledRecords() {
+        if (spilledRecords == null) {
+            spilledRecords = new LinkedHashMap<String, Long>();
+            try {
+                Object index = getPluginContext().getSharedRecord(getSpillIndexKey());
+                if (index instanceof Map) {
+                    spilledRecords.putAll((Map<String, Long>) index);
+                }
+            } catch (PluginException e) {
+                log.error("Unable to read the index of the WS responses spilled to the shared storage", e);
+            }
+        }
+        return spilledRecords;
+    }
+
+    /**
+     * Store the index of the spilled records.<br/>
+     * Must be called in a block synchronized on the spill lock.
+     */
+    private void saveSpilledRecords() {
+        try {
+            if (spilledRecords.isEmpty()) {
+                getPluginContext().deleteSharedRecord(getSpillIndexKey());
+            } else {
+                getPluginContext().setSharedRecord(getSpillIndexKey(), new LinkedHashMap<String, Long>(spilledRecords));
+            }
+        } catch (PluginException e) {
+            log.error("Unable to store the index of the WS responses spilled to the shared storage", e);
+        }
+    }
+
+    private void deleteSharedRecord(String sharedRecordKey) {
+        try {
+            getPluginContext().deleteSharedRecord(sharedRecordKey);
+        } catch (PluginException e) {
+            log.error("Unable to delete a WS response from the shared storage", e);
+        }
+    }
+
+    /**
+     * The key of the index of the spilled records (one index per plugin
+     * configuration)
+     */
+    private String getSpillIndexKey() {
+        return SPILL_INDEX_PREFIX + getPluginContext().getPluginConfigurationName();
+    }
+
+    private synchronized int getMaxSpilledRecords() {
+        return getMaxEntries() * SPILLED_ENTRIES_PER_ENTRY;
+    }
+
+    /**
+     * The key of the shared record of a response (the plugin configuration
+     * is part of it since the records of several configurations are managed
+     * independently)
+     * @param key a cache key
+     */
+    private String getSharedRecordKey(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            StringBuilder sharedRecordKey = new StringBuilder(SHARED_RECORD_PREFIX);
+            String qualifiedKey = getPluginContext().getPluginConfigurationName() + '\n' + key;
+            for (byte b : digest.digest(qualifiedKey.getBytes(StandardCharsets.UTF_8))) {
+                sharedRecordKey.append(String.format("%02x", b));
+            }
+            return sharedRecordKey.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+    }
+
+    private HostStatistics getHostStatistics(String host) {
+        HostStatistics hostStatistics = statistics.get(host);
+        if (hostStatistics == null) {
+            hostStatistics = new HostStatistics();
+            statistics.put(host, hostStatistics);
+        }
+        return hostStatistics;
+    }
+
+    private IPluginContext getPluginContext() {
+        return pluginContext;
+    }
+
+    private int getMaxEntries() {
+        return maxEntries;
+    }
+
+    private synchronized boolean isSpillToSharedStorage() {
+        return spillToSharedStorage;
+    }
+
+    private LinkedHashMap<String, CachedResponse> getEntries() {
+        return entries;
+    }
+
+    /**
+     * The counters associated with a host
+     */
+    private static class HostStatistics {
+        private long hits;
+        private long revalidations;
+        private long misses;
+    }
+
+    /**
+     * The relevant directives of a Cache-Control header
+     */
+    private static class CacheControl {
+        private boolean noStore = false;
+        private long maxAge = 0;
+
+        private CacheControl(String header) {
+            if (header == null) {
+                return;
+            }
+            for (String directive : header.split(",")) {
+                String trimmedDirective = directive.trim().toLowerCase();
+                if (trimmedDirective.equals("no-store")) {
+                    noStore = true;
+                } else if (trimmedDirective.equals("no-cache")) {
+                    maxAge = 0;
+                } else if (trimmedDirective.startsWith("max-age=")) {
+                    try {
+                        maxAge = Long.parseLong(trimmedDirective.substring("max-age=".length()).replace("\"", ""));
+                    } catch (NumberFormatException e) {
+                        maxAge = 0;
+                    }
+                }
+            }
+        }
+
+        private boolean isNoStore() {
+            return noStore;
+        }
+
+        private long getMaxAge() {
+            return maxAge;
+        }
+
+        private long getExpirationDate() {
+            return System.currentTimeMillis() + getMaxAge() * 1000;
+        }
+    }
+
+    /**
+     * A response stored in the cache
+     */
+    public static class CachedResponse implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private String key;
+        private String host;
+        private int status;
+        private String statusText;
+        private String body;
+        private TreeMap<String, List<String>> headers;
+        private String eTag;
+        private String lastModified;
+        private long expirationDate;
+
+        private CachedResponse(String key, String host, WSResponse response, String eTag, String lastModified, long expirationDate) {
+            this.key = key;
+            this.host = host;
+            this.status = response.getStatus();
+            this.statusText = response.getStatusText();
+            this.body = response.getBody();
+            this.headers = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+            for (Map.Entry<String, List<String>> header : response.getAllHeaders().entrySet()) {
+                this.headers.put(header.getKey(), new ArrayList<String>(header.getValue()));
+            }
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+            this.expirationDate = expirationDate;
+        }
+
+        /**
+         * Return true if the response can be used without contacting the server
+         */
+        public synchronized boolean isFresh() {
+            return System.currentTimeMillis() < expirationDate;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public String getStatusText() {
+            return statusText;
+        }
+
+        public String getBody() {
+            return body;
+        }
+
+        public String getHeader(String name) {
+            List<String> values = headers.get(name);
+            return values == null || values.isEmpty() ? null : values.get(0);
+        }
+
+        public String getETag() {
+            return eTag;
+        }
+
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        private synchronized void setExpirationDate(long expirationDate) {
+            this.expirationDate = expirationDate;
+        }
+
+        /**
+         * Return the date after which the response cannot be used anymore
+         * (the responses with a validator may be revalidated at any time)
+         */
+        private synchronized long getUselessAfter() {
+            return eTag != null || lastModified != null ? Long.MAX_VALUE : expirationDate;
+        }
+    }
+}
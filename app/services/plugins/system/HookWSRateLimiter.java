@@ -0,0 +1,285 @@
+package services.plugins.system;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A rate limiter for the WS calls performed by the hook scripts.<br/>
+ * A token bucket is associated with a host name (ex: "api.server.com") or an
+ * URL prefix (ex: "https://api.server.com/v2/"). When a bucket is empty the
+ * request is either queued until a token is available or rejected.<br/>
+ * The Retry-After header of the 429 responses is used to pause the
+ * corresponding bucket.<br/>
+ * The queued requests which cannot be executed (the plugin is stopped) are
+ * cancelled so that their callers are notified.
+ */
+public class HookWSRateLimiter {
+    /**
+     * The maximum number of times a request is retried after a 429 response
+     */
+    public static final int MAX_RETRIES_ON_TOO_MANY_REQUESTS = 3;
+
+    /**
+     * The maximum time a request may wait in the queue (in milliseconds)
+     */
+    public static final long MAX_QUEUE_DELAY = 60000l;
+
+    private ScheduledExecutorService scheduler;
+    private List<TokenBucket> buckets;
+    private Set<PendingTask> pendingTasks;
+
+    public HookWSRateLimiter(ScheduledExecutorService scheduler) {
+        this.scheduler = scheduler;
+        this.buckets = new CopyOnWriteArrayList<TokenBucket>();
+        this.pendingTasks = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * Define a limit for the specified host or URL prefix (replaces any
+     * existing limit for the same key)
+     * @param hostOrUrlPrefix a host name or an URL prefix
+     * @param requestsPerSecond the number of tokens added to the bucket every second
+     * @param burst the capacity of the bucket
+     * @param queueWhenExceeded true if the requests must wait for a token, false if they must be rejected
+     */
+    public synchronized void setLimit(String hostOrUrlPrefix, double requestsPerSecond, int burst, boolean queueWhenExceeded) {
+        if (requestsPerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("Invalid rate limit for " + hostOrUrlPrefix + ": the rate and the burst must be positive");
+        }
+        List<TokenBucket> newBuckets = new ArrayList<TokenBucket>();
+        for (TokenBucket bucket : buckets) {
+            if (!bucket.getKey().equals(hostOrUrlPrefix)) {
+                newBuckets.add(bucket);
+            }
+        }
+        newBuckets.add(new TokenBucket(hostOrUrlPrefix, requestsPerSecond, burst, queueWhenExceeded));
+        // The most specific keys first
+        Collections.sort(newBuckets, new Comparator<TokenBucket>() {
+            @Override
+            public int compare(TokenBucket bucket1, TokenBucket bucket2) {
+                return bucket2.getKey().length() - bucket1.getKey().length();
+            }
+        });
+        buckets.clear();
+        buckets.addAll(newBuckets);
+    }
+
+    /**
+     * Reserve a token for a request.
+     * @param url the URL of the request
+     * @param host the host of the request
+     * @return the delay (in milliseconds) before the request can be sent or -1 if the request is rejected
+     */
+    public long reserve(String url, String host) {
+        TokenBucket bucket = getBucket(url, host);
+        if (bucket == null) {
+            return 0;
+        }
+        return bucket.reserve();
+    }
+
+    /**
+     * Pause the bucket associated with the request after a 429 response
+     * @param url the URL of the request
+     * @param host the host of the request
+     * @param retryAfter the delay (in milliseconds) provided by the server
+     */
+    public void tooManyRequests(String url, String host, long retryAfter) {
+        TokenBucket bucket = getBucket(url, host);
+        if (bucket != null) {
+            bucket.blockFor(retryAfter);
+        }
+    }
+
+    /**
+     * Execute the specified task after the specified delay
+     * @param task a task
+     * @param onCancel executed instead of the task if the task cannot be executed (the plugin is stopped)
+     * @param delay a delay in milliseconds
+     */
+    public void schedule(Runnable task, Runnable onCancel, long delay) {
+        PendingTask pendingTask = new PendingTask(task, onCancel);
+        pendingTasks.add(pendingTask);
+        try {
+            scheduler.schedule(pendingTask, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            pendingTask.cancel();
+        }
+    }
+
+    /**
+     * Cancel the tasks which are waiting for their execution (to be called
+     * when the scheduler is stopped)
+     */
+    public void cancelPendingTasks() {
+        for (PendingTask pendingTask : pendingTasks) {
+            pendingTask.cancel();
+        }
+    }
+
+    /**
+     * Return the current level of the buckets
+     * @return a map (host or URL prefix, (attribute name, value))
+     */
+    public Map<String, Map<String, Object>> getStatus() {
+        Map<String, Map<String, Object>> status = new LinkedHashMap<String, Map<String, Object>>();
+        for (TokenBucket bucket : buckets) {
+            status.put(bucket.getKey(), bucket.getStatus());
+        }
+        return status;
+    }
+
+    /**
+     * Parse a Retry-After header (a number of seconds or an HTTP date)
+     * @param retryAfter the value of the header
+     * @return a delay in milliseconds or -1 if the header is missing or invalid
+     */
+    public static long parseRetryAfter(String retryAfter) {
+        if (retryAfter == null || retryAfter.trim().isEmpty()) {
+            return -1;
+        }
+        try {
+            return Math.max(0, Long.parseLong(retryAfter.trim()) * 1000);
+        } catch (NumberFormatException e) {
+            try {
+                long date = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+                return Math.max(0, date - System.currentTimeMillis());
+            } catch (DateTimeParseException e1) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Return the most specific bucket matching the specified request
+     */
+    private TokenBucket getBucket(String url, String host) {
+        for (TokenBucket bucket : buckets) {
+            if (bucket.matches(url, host)) {
+                return bucket;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A token bucket
+     */
+    private static class TokenBucket {
+        private String key;
+        private double tokensPerMillisecond;
+        private int capacity;
+        private boolean queueWhenExceeded;
+        private double tokens;
+        private long lastRefill;
+        private long blockedUntil;
+
+        private TokenBucket(String key, double requestsPerSecond, int capacity, boolean queueWhenExceeded) {
+            this.key = key;
+            this.tokensPerMillisecond = requestsPerSecond / 1000;
+            this.capacity = capacity;
+            this.queueWhenExceeded = queueWhenExceeded;
+            this.tokens = capacity;
+            this.lastRefill = System.currentTimeMillis();
+        }
+
+        private boolean matches(String url, String host) {
+            if (key.contains("://")) {
+                return url.startsWith(key);
+            }
+            return key.equalsIgnoreCase(host);
+        }
+
+        private synchronized long reserve() {
+            long now = refill();
+            long blockedDelay = Math.max(0, blockedUntil - now);
+            if (blockedDelay == 0 && tokens >= 1) {
+                tokens -= 1;
+                return 0;
+            }
+            if (!queueWhenExceeded) {
+                return -1;
+            }
+            long delay = Math.max(blockedDelay, (long) Math.ceil((1 - tokens) / tokensPerMillisecond));
+            if (delay > MAX_QUEUE_DELAY) {
+                return -1;
+            }
+            // The token is borrowed from the future (the level becomes negative)
+            tokens -= 1;
+            return delay;
+        }
+
+        private synchronized void blockFor(long delay) {
+            blockedUntil = Math.max(blockedUntil, System.currentTimeMillis() + delay);
+        }
+
+        private synchronized Map<String, Object> getStatus() {
+            long now = refill();
+            Map<String, Object> status = new LinkedHashMap<String, Object>();
+            status.put("tokens", tokens);
+            status.put("capacity", capacity);
+            status.put("requestsPerSecond", tokensPerMillisecond * 1000);
+            status.put("queueWhenExceeded", queueWhenExceeded);
+            status.put("blockedForMs", Math.max(0, blockedUntil - now));
+            return status;
+        }
+
+        /**
+         * Add the tokens accumulated since the last refill
+         * @return the current time
+         */
+        private long refill() {
+            long now = System.currentTimeMillis();
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerMillisecond);
+            lastRefill = now;
+            return now;
+        }
+
+        private String getKey() {
+            return key;
+        }
+    }
+
+    /**
+     * A scheduled task which is either executed or cancelled (but not both)
+     */
+    private class PendingTask implements Runnable {
+        private Runnable task;
+        private Runnable onCancel;
+        private AtomicBoolean done = new AtomicBoolean(false);
+
+        private PendingTask(Runnable task, Runnable onCancel) {
+            this.task = task;
+            this.onCancel = onCancel;
+        }
+
+        @Override
+        public void run() {
+            if (done.compareAndSet(false, true)) {
+                pendingTasks.remove(this);
+                task.run();
+            }
+        }
+
+        private void cancel() {
+            if (done.compareAndSet(false, true)) {
+                pendingTasks.remove(this);
+                onCancel.run();
+            }
+        }
+    }
+}
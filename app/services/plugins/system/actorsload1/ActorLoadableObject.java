@@ -26,6 +26,8 @@ import javax.xml.bind.annotation.XmlElement;
 import org.apache.commons.beanutils.BeanUtils;
 import org.apache.commons.lang3.tuple.Pair;
 
+import com.avaje.ebean.Ebean;
+
 import controllers.admin.UserManager;
 import dao.pmo.ActorDao;
 import dao.pmo.OrgUnitDao;
@@ -41,6 +43,8 @@ import play.data.validation.Constraints.MinLength;
 import play.data.validation.Constraints.Pattern;
 import play.data.validation.Constraints.Required;
 import play.data.validation.ValidationError;
+import services.plugins.system.loader.LoaderReferenceDataCache;
+import services.plugins.system.loader.LoaderReferenceDataCache.ActorIndex;
 
 /**
  * An object structure which is to be used to load actors data.<br/>
@@ -122,15 +126,20 @@ public class ActorLoadableObject implements ILoadableObject {
 
         // login
         if (this.login != null && !this.login.equals("")) {
-            Actor testActor = ActorDao.getActorByUid(this.login);
-            if (testActor != null) {
-                Actor actor = ActorDao.getActorByRefId(this.refId);
-                if (actor != null) { // edit
-                    if (!testActor.id.equals(actor.id)) {
-                        errors.add(new ValidationError("login", "The login \"" + this.login + "\" is already used by another actor"));
-                    }
-                } else { // create
-                    errors.add(new ValidationError("login", "The login \"" + this.login + "\" is already used by another actor"));
+            LoaderReferenceDataCache referenceDataCache = getReferenceDataCache();
+            if (referenceDataCache == null) {
+                validateLoginInDatabase(errors);
+                return errors.isEmpty() ? null : errors;
+            }
+            ActorIndex actorIndex = referenceDataCache.getActorIndex();
+            Long testActorId = actorIndex.getIdByUid(this.login);
+            if (testActorId != null && !testActorId.equals(actorIndex.getIdByRefId(this.refId))) {
+                // create or edit of another actor
+                errors.add(new ValidationError("login", "The login \"" + this.login + "\" is already used by another actor"));
+            } else {
+                String otherRefId = actorIndex.registerLoadedUid(this.login, this.refId);
+                if (otherRefId != null) {
+                    errors.add(new ValidationError("login", "The login \"" + this.login + "\" is also used by the actor " + otherRefId + " of the file"));
                 }
             }
         }
@@ -138,6 +147,27 @@ public class ActorLoadableObject implements ILoadableObject {
         return errors.isEmpty() ? null : errors;
     }
 
+    /**
+     * Check the uniqueness of the login with the database (when the object is
+     * not validated in the thread of a load).
+     * 
+     * @param errors
+     *            the validation errors
+     */
+    private void validateLoginInDatabase(List<ValidationError> errors) {
+        Actor testActor = ActorDao.getActorByUid(this.login);
+        if (testActor != null) {
+            Actor actor = ActorDao.getActorByRefId(this.refId);
+            if (actor != null) { // edit
+                if (!testActor.id.equals(actor.id)) {
+                    errors.add(new ValidationError("login", "The login \"" + this.login + "\" is already used by another actor"));
+                }
+            } else { // create
+                errors.add(new ValidationError("login", "The login \"" + this.login + "\" is already used by another actor"));
+            }
+        }
+    }
+
     /**
      * Default constructor.
      */
@@ -204,7 +234,15 @@ public class ActorLoadableObject implements ILoadableObject {
 
         boolean isNew = false;
 
-        Actor actor = ActorDao.getActorByRefId(getRefId());
+        LoaderReferenceDataCache referenceDataCache = getReferenceDataCache();
+
+        Actor actor;
+        if (referenceDataCache != null) {
+            Long actorId = referenceDataCache.getActorIndex().getIdByRefId(getRefId());
+            actor = actorId != null ? Ebean.find(Actor.class, actorId) : null;
+        } else {
+            actor = ActorDao.getActorByRefId(getRefId());
+        }
 
         if (actor == null) {
             actor = new Actor();
@@ -225,6 +263,10 @@ public class ActorLoadableObject implements ILoadableObject {
         actor.isActive = getIsActiveAsBoolean();
         actor.save();
 
+        if (referenceDataCache != null) {
+            referenceDataCache.getActorIndex().put(actor.id, actor.refId, actor.uid);
+        }
+
         if (isNew) {
             return Pair.of(actor.id, actor.refId);
         }
@@ -233,26 +275,61 @@ public class ActorLoadableObject implements ILoadableObject {
     }
 
     /**
-     * Look for the manager and update the actor.<br/>
+     * Look for the manager in the index of the actors and assign it to the
+     * actor in the index.<br/>
      * This must be done after all the users have been created or updated in
      * order to avoid missing managers.<br/>
-     * If the manager is not found, this method returns a pair with the refId
-     * and the managerRefId
+     * If the manager is not found or if it would create a cycle in the
+     * hierarchy, a message is added to the report.
      * 
-     * @return a tuple (refId, managerRefId)
-     */
-    Pair<String, String> addManager() {
-        if (getManagerRefId() != null && !getManagerRefId().equals("")) {
-            Actor foundManager = ActorDao.getActorByRefId(getManagerRefId());
-            if (foundManager != null) {
-                Actor currentActor = ActorDao.getActorByRefId(getRefId());
-                currentActor.manager = foundManager;
-                currentActor.save();
-            } else {
-                return Pair.of(getRefId(), getManagerRefId());
-            }
+     * @param actorIndex
+     *            the index of the actors of the load
+     * @param messages
+     *            the messages of the report
+     * 
+     * @return true if the manager of the actor must be updated with
+     *         {@link #updateManager(ActorIndex)}
+     */
+    boolean resolveManager(ActorIndex actorIndex, List<String> messages) {
+        if (getManagerRefId() == null || getManagerRefId().equals("")) {
+            return false;
         }
-        return null;
+        Long actorId = actorIndex.getIdByRefId(getRefId());
+        Long managerId = actorIndex.getIdByRefId(getManagerRefId());
+        if (managerId == null) {
+            messages.add("Employee " + getRefId() + ": impossible to find his manager with refId " + getManagerRefId());
+            return false;
+        }
+        if (actorId == null || managerId.equals(actorIndex.getParentId(actorId))) {
+            return false;
+        }
+        if (!actorIndex.assignParent(actorId, managerId)) {
+            messages.add("Employee " + getRefId() + ": the manager with refId " + getManagerRefId() + " would create a cycle in the hierarchy");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Update the manager of the actor with the one assigned by
+     * {@link #resolveManager(ActorIndex, List)} (without loading the actor).
+     * 
+     * @param actorIndex
+     *            the index of the actors of the load
+     */
+    void updateManager(ActorIndex actorIndex) {
+        Long actorId = actorIndex.getIdByRefId(getRefId());
+        Actor currentActor = Ebean.getReference(Actor.class, actorId);
+        currentActor.manager = Ebean.getReference(Actor.class, actorIndex.getParentId(actorId));
+        Ebean.update(currentActor);
+    }
+
+    /**
+     * Get the reference data cache of the load running in the current thread
+     * (null if none).
+     */
+    private static LoaderReferenceDataCache getReferenceDataCache() {
+        return LoaderReferenceDataCache.current(ActorLoadableObject.class);
     }
 
     /**
@@ -505,6 +582,10 @@ public class ActorLoadableObject implements ILoadableObject {
      * Get the actor type for the actor type ref id.
      */
     public ActorType getActorType() {
+        LoaderReferenceDataCache referenceDataCache = getReferenceDataCache();
+        if (referenceDataCache != null) {
+            return referenceDataCache.getActorTypeByRefId(getActorTypeRefId());
+        }
         return ActorDao.getActorTypeByRefId(getActorTypeRefId());
     }
 
@@ -530,6 +611,10 @@ public class ActorLoadableObject implements ILoadableObject {
      * Get the org unit for the org unit ref id.
      */
     public OrgUnit getOrgUnit() {
+        LoaderReferenceDataCache referenceDataCache = getReferenceDataCache();
+        if (referenceDataCache != null) {
+            return referenceDataCache.getOrgUnitByRefId(getOrgUnitRefId());
+        }
         return OrgUnitDao.getOrgUnitByRefId(getOrgUnitRefId());
     }
 
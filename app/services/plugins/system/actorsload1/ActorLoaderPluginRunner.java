@@ -18,22 +18,20 @@
 package services.plugins.system.actorsload1;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
 import javax.inject.Inject;
 
-import org.apache.commons.lang3.tuple.Pair;
-
 import dao.pmo.ActorDao;
 import framework.services.plugins.api.IPluginContext;
 import framework.services.plugins.api.IPluginMenuDescriptor;
-import framework.services.plugins.loader.toolkit.AbstractJavaScriptFileLoaderMapper;
 import framework.services.plugins.loader.toolkit.IGenericFileLoaderMapper;
 import framework.services.plugins.loader.toolkit.LoadableObjectPluginRunner;
 import framework.services.script.IScriptService;
 import framework.services.system.ISysAdminUtils;
+import services.plugins.system.loader.AbstractChunkedJavaScriptFileLoaderMapper;
+import services.plugins.system.loader.LoaderReferenceDataCache.ActorIndex;
 
 /**
  * Actor loader plugin.
@@ -59,7 +57,8 @@ public class ActorLoaderPluginRunner extends LoadableObjectPluginRunner<ActorLoa
 
     @Override
     public IGenericFileLoaderMapper<ActorLoadableObject> createGenericFileLoaderMapper(final String javaScriptMappingScript) {
-        return new AbstractJavaScriptFileLoaderMapper<ActorLoadableObject>(ActorLoadableObject.class, javaScriptMappingScript, getScriptService()) {
+        return new AbstractChunkedJavaScriptFileLoaderMapper<ActorLoadableObject>(ActorLoadableObject.class, javaScriptMappingScript,
+                getScriptService()) {
 
             @Override
             public String getLoadedObjectName() {
@@ -67,8 +66,7 @@ public class ActorLoaderPluginRunner extends LoadableObjectPluginRunner<ActorLoa
             }
 
             @Override
-            public Pair<String, List<String>> beforeSave(List<ActorLoadableObject> listOfValidLoadedObjects) throws IOException {
-
+            protected void beforeSaveStart() throws IOException {
                 if (isUnactivateNotFoundObjects()) {
                     String unactivationSelectionClause = getUnactivationSelectionClause();
                     unactivationSelectionClause = unactivationSelectionClause
@@ -76,29 +74,42 @@ public class ActorLoaderPluginRunner extends LoadableObjectPluginRunner<ActorLoa
                             .replace("org_unit_ref_id", "(select org_unit.ref_id from org_unit where org_unit.id=org_unit_id)");
                     ActorDao.unactivateActors(unactivationSelectionClause);
                 }
+            }
 
-                List<String> notFoundRelations = new ArrayList<String>();
-                for (ActorLoadableObject actorLoadableObject : listOfValidLoadedObjects) {
+            @Override
+            protected void beforeSaveChunk(List<ActorLoadableObject> chunk, List<String> notFoundRelations) throws IOException {
+                for (ActorLoadableObject actorLoadableObject : chunk) {
                     if (actorLoadableObject.getOrgUnitRefId() != null && !actorLoadableObject.getOrgUnitRefId().equals("")
                             && actorLoadableObject.getOrgUnit() == null) {
                         notFoundRelations.add("Actor " + actorLoadableObject.getRefId() + ": "
                                 + String.format("org unit %s does not exist", actorLoadableObject.getOrgUnitRefId()));
                     }
                 }
+            }
 
-                return Pair.of("Not found relations", notFoundRelations);
+            @Override
+            protected String getBeforeSaveReportTitle() {
+                return "Not found relations";
             }
 
             @Override
-            public Pair<String, List<String>> afterSave(List<ActorLoadableObject> listOfValidLoadedObjects) throws IOException {
-                List<String> managerNotFound = new ArrayList<String>();
-                for (ActorLoadableObject actorLoadObject : listOfValidLoadedObjects) {
-                    Pair<String, String> pair = actorLoadObject.addManager();
-                    if (pair != null) {
-                        managerNotFound.add("Employee " + pair.getLeft() + ": impossible to find his manager with refId " + pair.getRight());
+            protected void afterSaveAll(List<ActorLoadableObject> listOfValidLoadedObjects, List<String> messages) throws IOException {
+                // the managers may be defined anywhere in the file
+                // the assignments are done in the chunks so that they are
+                // reverted in the index if the transaction is rolled back
+                ActorIndex actorIndex = getReferenceDataCache().getActorIndex();
+                processByChunks(listOfValidLoadedObjects, messages, (chunk, chunkMessages) -> {
+                    for (ActorLoadableObject actorLoadObject : chunk) {
+                        if (actorLoadObject.resolveManager(actorIndex, chunkMessages)) {
+                            actorLoadObject.updateManager(actorIndex);
+                        }
                     }
-                }
-                return Pair.of("Manager association", managerNotFound);
+                });
+            }
+
+            @Override
+            protected String getAfterSaveReportTitle() {
+                return "Manager association";
             }
         };
     }
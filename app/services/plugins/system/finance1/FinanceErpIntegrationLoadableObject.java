@@ -31,6 +31,9 @@ import javax.xml.bind.annotation.XmlElement;
 import org.apache.commons.beanutils.BeanUtils;
 import org.apache.commons.lang3.tuple.Pair;
 
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.TxCallable;
+
 import dao.finance.CostCenterDAO;
 import dao.finance.CurrencyDAO;
 import dao.finance.PurchaseOrderDAO;
@@ -51,6 +54,7 @@ import play.data.Form;
 import play.data.validation.Constraints.MaxLength;
 import play.data.validation.Constraints.Required;
 import play.data.validation.ValidationError;
+import services.plugins.system.loader.LoaderReferenceDataCache;
 
 /**
  * An object structure which is to be used to load financial data.<br/>
@@ -234,7 +238,13 @@ public class FinanceErpIntegrationLoadableObject implements ILoadableObject {
 
     @Override
     public Pair<Long, String> updateOrCreate() {
-        return updateOrCreatePurchaseOrderLineItem();
+        // the objects of the row are saved in one transaction
+        return Ebean.execute(new TxCallable<Pair<Long, String>>() {
+            @Override
+            public Pair<Long, String> call() {
+                return updateOrCreatePurchaseOrderLineItem();
+            }
+        });
     }
 
     /**
@@ -728,6 +738,10 @@ public class FinanceErpIntegrationLoadableObject implements ILoadableObject {
      * Get the the currency for the currency code.
      */
     public Currency getCurrency() {
+        LoaderReferenceDataCache referenceDataCache = LoaderReferenceDataCache.current(FinanceErpIntegrationLoadableObject.class);
+        if (referenceDataCache != null) {
+            return referenceDataCache.getCurrencyByCode(this.getCurrencyCode());
+        }
         return CurrencyDAO.getCurrencyByCode(this.getCurrencyCode());
     }
 
@@ -864,6 +878,10 @@ public class FinanceErpIntegrationLoadableObject implements ILoadableObject {
      * Get the cost center for the cost center ref id.
      */
     public CostCenter getCostCenter() {
+        LoaderReferenceDataCache referenceDataCache = LoaderReferenceDataCache.current(FinanceErpIntegrationLoadableObject.class);
+        if (referenceDataCache != null) {
+            return referenceDataCache.getCostCenterByRefId(this.getCostCenterRefId());
+        }
         return CostCenterDAO.getCostCenterByRefId(this.getCostCenterRefId());
     }
 
@@ -887,6 +905,10 @@ public class FinanceErpIntegrationLoadableObject implements ILoadableObject {
      * Get the supplier for the supplier ref id.
      */
     public Supplier getSupplier() {
+        LoaderReferenceDataCache referenceDataCache = LoaderReferenceDataCache.current(FinanceErpIntegrationLoadableObject.class);
+        if (referenceDataCache != null) {
+            return referenceDataCache.getSupplierByRefId(this.getSupplierRefId());
+        }
         return SupplierDAO.getSupplierByRefId(this.getSupplierRefId());
     }
 
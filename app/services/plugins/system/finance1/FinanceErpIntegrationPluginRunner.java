@@ -23,18 +23,16 @@ import java.util.List;
 
 import javax.inject.Inject;
 
-import org.apache.commons.lang3.tuple.Pair;
-
 import dao.finance.PurchaseOrderDAO;
 import framework.services.plugins.api.IPluginContext;
 import framework.services.plugins.api.IPluginMenuDescriptor;
-import framework.services.plugins.loader.toolkit.AbstractJavaScriptFileLoaderMapper;
 import framework.services.plugins.loader.toolkit.IGenericFileLoaderMapper;
 import framework.services.plugins.loader.toolkit.LoadableObjectPluginRunner;
 import framework.services.script.IScriptService;
 import framework.services.system.ISysAdminUtils;
 import models.finance.PurchaseOrder;
 import models.finance.PurchaseOrderLineItem;
+import services.plugins.system.loader.AbstractChunkedJavaScriptFileLoaderMapper;
 
 /**
  * Financial plugin.
@@ -61,20 +59,15 @@ public class FinanceErpIntegrationPluginRunner extends LoadableObjectPluginRunne
     @Override
     public IGenericFileLoaderMapper<FinanceErpIntegrationLoadableObject> createGenericFileLoaderMapper(String javaScriptMappingScript) {
 
-        return new AbstractJavaScriptFileLoaderMapper<FinanceErpIntegrationLoadableObject>(FinanceErpIntegrationLoadableObject.class, javaScriptMappingScript,
-                getScriptService()) {
+        return new AbstractChunkedJavaScriptFileLoaderMapper<FinanceErpIntegrationLoadableObject>(FinanceErpIntegrationLoadableObject.class,
+                javaScriptMappingScript, getScriptService()) {
             @Override
             public String getLoadedObjectName() {
                 return "Financial / Load purchase order line items";
             }
 
             @Override
-            public Pair<String, List<String>> beforeSave(List<FinanceErpIntegrationLoadableObject> listOfValidLoadedObjects) throws IOException {
-                return null;
-            }
-
-            @Override
-            public Pair<String, List<String>> afterSave(List<FinanceErpIntegrationLoadableObject> listOfValidLoadedObjects) throws IOException {
+            protected void afterSaveChunk(List<FinanceErpIntegrationLoadableObject> chunk, List<String> messages) throws IOException {
 
                 /*
                  * If necessary update the isCancelled flag of concerned
@@ -86,7 +79,7 @@ public class FinanceErpIntegrationPluginRunner extends LoadableObjectPluginRunne
                  * We set the flag isCancelled to true if all line items of a
                  * concerned purchase order have isCancelled to true.
                  */
-                for (FinanceErpIntegrationLoadableObject financeErpIntegrationLoadableObject : listOfValidLoadedObjects) {
+                for (FinanceErpIntegrationLoadableObject financeErpIntegrationLoadableObject : chunk) {
                     PurchaseOrder purchaseOrder = PurchaseOrderDAO
                             .getPurchaseOrderLineItemByRefId(financeErpIntegrationLoadableObject.getRefId()).purchaseOrder;
                     boolean isCancelled = true;
@@ -101,8 +94,6 @@ public class FinanceErpIntegrationPluginRunner extends LoadableObjectPluginRunne
                         purchaseOrder.save();
                     }
                 }
-
-                return null;
             }
         };
     }
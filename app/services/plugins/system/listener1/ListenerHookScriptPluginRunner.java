@@ -16,6 +16,7 @@ import framework.services.plugins.api.IPluginContext;
 import framework.services.plugins.api.IPluginMenuDescriptor;
 import framework.services.plugins.api.IPluginRunner;
 import framework.services.plugins.api.PluginException;
+import framework.services.system.ISysAdminUtils;
 import jdk.nashorn.api.scripting.ClassFilter;
 import jdk.nashorn.api.scripting.NashornScriptEngineFactory;
 import play.Logger;
@@ -35,14 +36,18 @@ public class ListenerHookScriptPluginRunner implements IPluginRunner {
     private NashornScriptEngineFactory factory;
     private IPluginContext pluginContext;
     private ScriptEngine scriptEngine;
+    private HookScriptUtils hookScriptUtils;
     private WSClient wsClient;
     private ICustomAttributeManagerService customAttributeManagerService;
+    private ISysAdminUtils sysAdminUtils;
     
     @Inject
-    public ListenerHookScriptPluginRunner(IPluginContext pluginContext, WSClient wsClient, ICustomAttributeManagerService customAttributeManagerService) {
+    public ListenerHookScriptPluginRunner(IPluginContext pluginContext, WSClient wsClient, ICustomAttributeManagerService customAttributeManagerService,
+            ISysAdminUtils sysAdminUtils) {
         this.pluginContext=pluginContext;
         this.wsClient=wsClient;
         this.customAttributeManagerService = customAttributeManagerService;
+        this.sysAdminUtils = sysAdminUtils;
         factory = new NashornScriptEngineFactory();
     }
 
@@ -66,7 +71,13 @@ public class ListenerHookScriptPluginRunner implements IPluginRunner {
 
     @Override
     public void start() throws PluginException {
-        initScriptEngine();
+        try{
+            initScriptEngine();
+        }catch(PluginException | RuntimeException e){
+            //Release the utilities (threads) created before the failure
+            shutDownScriptEngine();
+            throw e;
+        }
     }
 
     @Override
@@ -90,9 +101,11 @@ public class ListenerHookScriptPluginRunner implements IPluginRunner {
         });
         this.scriptEngine.getContext().removeAttribute("JavaImporter", ScriptContext.ENGINE_SCOPE);
         this.scriptEngine.getContext().removeAttribute("Java", ScriptContext.ENGINE_SCOPE);
-        this.scriptEngine.getContext().setAttribute("scriptUtils",new HookScriptUtils(getCustomAttributeManagerService(), getPluginContext(), getWsClient()), ScriptContext.ENGINE_SCOPE);
+        this.hookScriptUtils = new HookScriptUtils(getCustomAttributeManagerService(), getPluginContext(), getWsClient(), getSysAdminUtils());
+        this.scriptEngine.getContext().setAttribute("scriptUtils", getHookScriptUtils(), ScriptContext.ENGINE_SCOPE);
         Pair<Boolean, byte[]> hookScriptConfiguration=getPluginContext().getConfiguration(getPluginContext().getPluginDescriptor().getConfigurationBlockDescriptors().get(HOOKSCRIPT_CONFIGURATION_NAME), true);
         if(!hookScriptConfiguration.getLeft()){
+            getHookScriptUtils().beginInvocation();
             try {
                 //Evaluate the script
                 this.scriptEngine.eval(new String(hookScriptConfiguration.getRight()));
@@ -101,6 +114,8 @@ public class ListenerHookScriptPluginRunner implements IPluginRunner {
                     log.debug("Invalid hook script",e);
                 }
                 throw new PluginException("Invalid hook script",e);
+            } finally {
+                getHookScriptUtils().endInvocation();
             }
         }else{
             throw new PluginException("WARNING: the current script might not be compatible with the version of the plugin"
@@ -112,6 +127,10 @@ public class ListenerHookScriptPluginRunner implements IPluginRunner {
     }
     
     private synchronized void shutDownScriptEngine(){
+        if(getHookScriptUtils()!=null){
+            getHookScriptUtils().shutdown();
+            this.hookScriptUtils=null;
+        }
         this.scriptEngine=null;
     }
 
@@ -131,4 +150,12 @@ public class ListenerHookScriptPluginRunner implements IPluginRunner {
         return this.customAttributeManagerService;
     }
 
+    private ISysAdminUtils getSysAdminUtils() {
+        return sysAdminUtils;
+    }
+
+    private HookScriptUtils getHookScriptUtils() {
+        return hookScriptUtils;
+    }
+
 }
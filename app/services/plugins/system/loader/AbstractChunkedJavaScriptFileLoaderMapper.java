@@ -0,0 +1,279 @@
+/*! LICENSE
+ *
+ * Copyright (c) 2015, The Agile Factory SA and/or its affiliates. All rights
+ * reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package services.plugins.system.loader;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.lang3.tuple.Pair;
+
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.Transaction;
+
+import framework.services.plugins.loader.toolkit.AbstractJavaScriptFileLoaderMapper;
+import framework.services.plugins.loader.toolkit.ILoadableObject;
+import framework.services.script.IScriptService;
+import play.Logger;
+
+/**
+ * A JavaScript file loader mapper which processes the valid loaded objects by
+ * chunks of fixed size before and after the save.<br/>
+ * The per-row work (lookups, updates) is done in
+ * {@link #beforeSaveChunk(List, List)} and
+ * {@link #afterSaveChunk(List, List)}. The work which requires all the rows
+ * (ex: resolution of the links between the rows) is done in a second pass by
+ * {@link #afterSaveAll(List, List)}.<br/>
+ * Each chunk is processed in its own transaction (with the JDBC batch mode),
+ * so the size of a transaction, of its JDBC batches and of its persistence
+ * context (which is discarded at the end of the transaction) is bounded by
+ * the size of a chunk. This does not bound the memory used by a load: the
+ * loaded objects of the file, the reference data and the indexes of the
+ * {@link LoaderReferenceDataCache} are kept until the end of the load.<br/>
+ * If the processing of a chunk fails, the transaction is rolled back and the
+ * objects of the chunk are processed again one by one (each one in its own
+ * transaction) in order to isolate the failing objects, which are reported in
+ * the load report. The changes done in the indexes of the
+ * {@link LoaderReferenceDataCache} while processing a chunk (ex: assignment of
+ * a manager) are reverted when its transaction is rolled back.<br/>
+ * The mapper delimits the loads of the {@link LoaderReferenceDataCache} (see
+ * {@link LoaderReferenceDataCache#startLoad(Class)}): a load starts when the
+ * mapper is created and ends with the "after save" pass.
+ *
+ * @param <T>
+ *            the type of the loaded objects
+ */
+public abstract class AbstractChunkedJavaScriptFileLoaderMapper<T extends ILoadableObject> extends AbstractJavaScriptFileLoaderMapper<T> {
+    private static Logger.ALogger log = Logger.of(AbstractChunkedJavaScriptFileLoaderMapper.class);
+
+    public static final int DEFAULT_CHUNK_SIZE = 500;
+
+    private Class<T> loadedObjectClass;
+    private int chunkSize;
+
+    /**
+     * Default constructor.
+     *
+     * @param loadedObjectClass
+     *            the class of the loaded objects
+     * @param javaScriptMappingScript
+     *            the mapping script
+     * @param scriptService
+     *            the script service
+     */
+    public AbstractChunkedJavaScriptFileLoaderMapper(Class<T> loadedObjectClass, String javaScriptMappingScript, IScriptService scriptService) {
+        this(loadedObjectClass, javaScriptMappingScript, scriptService, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Constructor with a chunk size.
+     *
+     * @param loadedObjectClass
+     *            the class of the loaded objects
+     * @param javaScriptMappingScript
+     *            the mapping script
+     * @param scriptService
+     *            the script service
+     * @param chunkSize
+     *            the number of objects processed together
+     */
+    public AbstractChunkedJavaScriptFileLoaderMapper(Class<T> loadedObjectClass, String javaScriptMappingScript, IScriptService scriptService,
+            int chunkSize) {
+        super(loadedObjectClass, javaScriptMappingScript, scriptService);
+        this.loadedObjectClass = loadedObjectClass;
+        LoaderReferenceDataCache.startLoad(loadedObjectClass);
+        this.chunkSize = chunkSize < 1 ? DEFAULT_CHUNK_SIZE : chunkSize;
+    }
+
+    @Override
+    public final Pair<String, List<String>> beforeSave(List<T> listOfValidLoadedObjects) throws IOException {
+        List<String> messages = new ArrayList<String>();
+        beforeSaveStart();
+        processByChunks(listOfValidLoadedObjects, messages, this::beforeSaveChunk);
+        return getBeforeSaveReportTitle() != null ? Pair.of(getBeforeSaveReportTitle(), messages) : null;
+    }
+
+    @Override
+    public final Pair<String, List<String>> afterSave(List<T> listOfValidLoadedObjects) throws IOException {
+        List<String> messages = new ArrayList<String>();
+        try {
+            processByChunks(listOfValidLoadedObjects, messages, this::afterSaveChunk);
+            afterSaveAll(listOfValidLoadedObjects, messages);
+        } finally {
+            // the next load (if the mapper is reused) gets a new cache
+            LoaderReferenceDataCache.startLoad(loadedObjectClass);
+        }
+        return getAfterSaveReportTitle() != null ? Pair.of(getAfterSaveReportTitle(), messages) : null;
+    }
+
+    /**
+     * Called once before the first chunk is processed by
+     * {@link #beforeSaveChunk(List, List)} (ex: unactivation of the objects
+     * which are not in the file).
+     */
+    protected void beforeSaveStart() throws IOException {
+    }
+
+    /**
+     * Process a chunk of valid objects before they are saved.
+     *
+     * @param chunk
+     *            a chunk of valid loaded objects
+     * @param messages
+     *            the messages to be added to the load report
+     */
+    protected void beforeSaveChunk(List<T> chunk, List<String> messages) throws IOException {
+    }
+
+    /**
+     * Process a chunk of valid objects after they have been saved.
+     *
+     * @param chunk
+     *            a chunk of valid loaded objects
+     * @param messages
+     *            the messages to be added to the load report
+     */
+    protected void afterSaveChunk(List<T> chunk, List<String> messages) throws IOException {
+    }
+
+    /**
+     * Second pass, called once all the objects have been saved, for the
+     * processing which requires all the rows (ex: links between the rows).
+     *
+     * @param listOfValidLoadedObjects
+     *            all the valid loaded objects
+     * @param messages
+     *            the messages to be added to the load report
+     */
+    protected void afterSaveAll(List<T> listOfValidLoadedObjects, List<String> messages) throws IOException {
+    }
+
+    /**
+     * The title of the "before save" section of the load report (null if
+     * there is no such section).
+     */
+    protected String getBeforeSaveReportTitle() {
+        return null;
+    }
+
+    /**
+     * The title of the "after save" section of the load report (null if there
+     * is no such section).
+     */
+    protected String getAfterSaveReportTitle() {
+        return null;
+    }
+
+    /**
+     * Get the reference data cache of the current load (bound to the current
+     * thread).
+     */
+    protected LoaderReferenceDataCache getReferenceDataCache() {
+        return LoaderReferenceDataCache.current(loadedObjectClass);
+    }
+
+    /**
+     * Get the number of objects processed together.
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Process a list of objects by chunks, each chunk in one transaction (see
+     * the class documentation).
+     *
+     * @param loadedObjects
+     *            the loaded objects to process
+     * @param messages
+     *            the messages to be added to the load report
+     * @param chunkProcessor
+     *            the processing of a chunk
+     */
+    protected void processByChunks(List<T> loadedObjects, List<String> messages, ChunkProcessor<T> chunkProcessor) {
+        for (int i = 0; i < loadedObjects.size(); i += getChunkSize()) {
+            processChunk(getChunk(loadedObjects, i), messages, chunkProcessor);
+        }
+    }
+
+    /**
+     * Process a chunk in one transaction, if it fails process its objects
+     * one by one.
+     *
+     * @param chunk
+     *            a chunk of valid loaded objects
+     * @param messages
+     *            the messages to be added to the load report
+     * @param chunkProcessor
+     *            the processing of the chunk
+     */
+    private void processChunk(List<T> chunk, List<String> messages, ChunkProcessor<T> chunkProcessor) {
+        LoaderReferenceDataCache loadReferenceDataCache = getReferenceDataCache();
+        List<String> chunkMessages = new ArrayList<String>();
+        // a new transaction, and thus a new persistence context, per chunk
+        Transaction transaction = Ebean.beginTransaction();
+        try {
+            transaction.setBatchMode(true);
+            transaction.setBatchSize(getChunkSize());
+            loadReferenceDataCache.beginChanges();
+            chunkProcessor.process(chunk, chunkMessages);
+            Ebean.commitTransaction();
+            loadReferenceDataCache.commitChanges();
+            messages.addAll(chunkMessages);
+            return;
+        } catch (Exception e) {
+            loadReferenceDataCache.rollbackChanges();
+            log.warn("Unable to process a chunk of " + chunk.size() + " objects, the objects are processed one by one", e);
+        } finally {
+            Ebean.endTransaction();
+        }
+
+        for (T loadedObject : chunk) {
+            List<String> objectMessages = new ArrayList<String>();
+            Ebean.beginTransaction();
+            try {
+                loadReferenceDataCache.beginChanges();
+                chunkProcessor.process(Collections.singletonList(loadedObject), objectMessages);
+                Ebean.commitTransaction();
+                loadReferenceDataCache.commitChanges();
+                messages.addAll(objectMessages);
+            } catch (Exception e) {
+                loadReferenceDataCache.rollbackChanges();
+                log.error("Unable to process the object of the row " + loadedObject.getSourceRowNumber(), e);
+                messages.add("Row " + loadedObject.getSourceRowNumber() + ": " + e.getMessage());
+            } finally {
+                Ebean.endTransaction();
+            }
+        }
+    }
+
+    private List<T> getChunk(List<T> loadedObjects, int start) {
+        return loadedObjects.subList(start, Math.min(loadedObjects.size(), start + getChunkSize()));
+    }
+
+    /**
+     * The processing of a chunk of objects.
+     *
+     * @param <T>
+     *            the type of the loaded objects
+     */
+    protected interface ChunkProcessor<T> {
+        void process(List<T> chunk, List<String> messages) throws IOException;
+    }
+}
@@ -0,0 +1,189 @@
+/*! LICENSE
+ *
+ * Copyright (c) 2015, The Agile Factory SA and/or its affiliates. All rights
+ * reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package services.plugins.system.loader;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An in-memory index of the objects of a hierarchy (ex: the actors and their
+ * managers, the org units and their parents) used by the loaders to resolve
+ * the links between the objects without querying the database for each
+ * loaded row.<br/>
+ * The index associates the ref ids with the ids and the ids with the id of
+ * their parent. It must be updated with {@link #put(Long, String)} when an
+ * object is saved.<br/>
+ * The changes done between {@link #beginChanges()} and
+ * {@link #commitChanges()} can be reverted with {@link #rollbackChanges()} (ex:
+ * when the transaction of a chunk is rolled back).
+ */
+public class HierarchyIndex {
+    private Map<String, Long> idsByRefId = new HashMap<String, Long>();
+    private Map<Long, Long> parentIdsById = new HashMap<Long, Long>();
+    private List<Runnable> undoLog;
+
+    /**
+     * Default constructor.
+     */
+    public HierarchyIndex() {
+    }
+
+    /**
+     * Get the id of an object by ref id (null if not found).
+     *
+     * @param refId
+     *            the object ref id
+     */
+    public synchronized Long getIdByRefId(String refId) {
+        return refId != null ? idsByRefId.get(refId) : null;
+    }
+
+    /**
+     * Add or update an object in the index.
+     *
+     * @param id
+     *            the object id
+     * @param refId
+     *            the object ref id
+     */
+    public synchronized void put(Long id, String refId) {
+        if (refId != null) {
+            change(idsByRefId, refId, id);
+        }
+    }
+
+    /**
+     * Get the id of the parent of an object (null if none).
+     *
+     * @param id
+     *            the object id
+     */
+    public synchronized Long getParentId(Long id) {
+        return parentIdsById.get(id);
+    }
+
+    /**
+     * Set the parent of an object as it is in the database.
+     *
+     * @param id
+     *            the object id
+     * @param parentId
+     *            the parent id (may be null)
+     */
+    public synchronized void setParentId(Long id, Long parentId) {
+        change(parentIdsById, id, parentId);
+    }
+
+    /**
+     * Assign a parent to an object if it doesn't create a cycle in the
+     * hierarchy (in this case the previous parent is kept).
+     *
+     * @param id
+     *            the object id
+     * @param parentId
+     *            the parent id
+     *
+     * @return false if the parent would create a cycle
+     */
+    public synchronized boolean assignParent(Long id, Long parentId) {
+        Long previousParentId = change(parentIdsById, id, parentId);
+        if (isInCycle(id)) {
+            change(parentIdsById, id, previousParentId);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Start recording the changes of the index in order to be able to revert
+     * them.
+     */
+    public synchronized void beginChanges() {
+        undoLog = new ArrayList<Runnable>();
+    }
+
+    /**
+     * Keep the changes done since {@link #beginChanges()}.
+     */
+    public synchronized void commitChanges() {
+        undoLog = null;
+    }
+
+    /**
+     * Revert the changes done since {@link #beginChanges()}.
+     */
+    public synchronized void rollbackChanges() {
+        if (undoLog != null) {
+            for (int i = undoLog.size() - 1; i >= 0; i--) {
+                undoLog.get(i).run();
+            }
+            undoLog = null;
+        }
+    }
+
+    /**
+     * Set (or remove if the value is null) an entry of a map of the index and
+     * record how to revert it if the changes are recorded.<br/>
+     * Must be called in a synchronized block.
+     *
+     * @param map
+     *            a map of the index (without null values)
+     * @param key
+     *            the key
+     * @param value
+     *            the value (null to remove the entry)
+     *
+     * @return the previous value
+     */
+    protected <K, V> V change(Map<K, V> map, K key, V value) {
+        V previousValue = value != null ? map.put(key, value) : map.remove(key);
+        if (undoLog != null) {
+            undoLog.add(() -> {
+                if (previousValue != null) {
+                    map.put(key, previousValue);
+                } else {
+                    map.remove(key);
+                }
+            });
+        }
+        return previousValue;
+    }
+
+    /**
+     * Return true if an object is one of its own ancestors.<br/>
+     * Must be called in a synchronized block.
+     *
+     * @param id
+     *            the object id
+     */
+    private boolean isInCycle(Long id) {
+        Set<Long> visitedIds = new HashSet<Long>();
+        Long currentId = parentIdsById.get(id);
+        while (currentId != null && visitedIds.add(currentId)) {
+            if (currentId.equals(id)) {
+                return true;
+            }
+            currentId = parentIdsById.get(currentId);
+        }
+        return false;
+    }
+}
@@ -0,0 +1,368 @@
+/*! LICENSE
+ *
+ * Copyright (c) 2015, The Agile Factory SA and/or its affiliates. All rights
+ * reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package services.plugins.system.loader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import com.avaje.ebean.Ebean;
+
+import models.finance.CostCenter;
+import models.finance.Currency;
+import models.finance.Supplier;
+import models.pmo.Actor;
+import models.pmo.ActorType;
+import models.pmo.OrgUnit;
+import models.pmo.OrgUnitType;
+import play.Logger;
+
+/**
+ * A cache for the reference data (actor types, org units, currencies...) which
+ * are looked up by the loadable objects during a load.<br/>
+ * All the objects of a reference data type are loaded with one query the first
+ * time one of them is requested, the next lookups are done in memory.<br/>
+ * The cache also provides an index of the existing actors (see
+ * {@link ActorIndex}) and of the existing org units.<br/>
+ * The cache is scoped to a load. Because the loadable objects are
+ * instantiated by the loader framework, they get the cache with
+ * {@link #current(Class)}: the cache is created and bound to the calling
+ * thread on its first use during the load (ex: when the first object is
+ * validated by the loading thread). The
+ * {@link AbstractChunkedJavaScriptFileLoaderMapper} of the load delimits the
+ * loads with {@link #startLoad(Class)}: it is called when the mapper is
+ * created and at the end of the load, the caches of the previous load are
+ * then discarded in all the threads. Outside of a load, no cache is provided
+ * and the loadable objects must look up the data in the database. The
+ * reference data must not be looked up through this cache if they are
+ * created or updated by the load itself.
+ */
+public class LoaderReferenceDataCache {
+    private static Logger.ALogger log = Logger.of(LoaderReferenceDataCache.class);
+
+    private static ThreadLocal<LoaderReferenceDataCache> boundCache = new ThreadLocal<LoaderReferenceDataCache>();
+    private static Map<Class<?>, Object> currentLoads = new ConcurrentHashMap<Class<?>, Object>();
+
+    private Class<?> loadedObjectClass;
+    private Object load;
+    private Map<Class<?>, Map<String, Object>> referenceData;
+    private ActorIndex actorIndex;
+    private HierarchyIndex orgUnitIndex;
+    private boolean recordingChanges;
+
+    /**
+     * Create the cache of a load.
+     *
+     * @param loadedObjectClass
+     *            the class of the loaded objects
+     * @param load
+     *            the identifier of the load (see {@link #startLoad(Class)})
+     */
+    private LoaderReferenceDataCache(Class<?> loadedObjectClass, Object load) {
+        this.loadedObjectClass = loadedObjectClass;
+        this.load = load;
+        this.referenceData = new HashMap<Class<?>, Map<String, Object>>();
+    }
+
+    /**
+     * Start a new load for a type of loadable object: the caches of the
+     * previous load are discarded (the one bound to the current thread is
+     * released immediately, the ones bound to other threads at their next
+     * access).
+     *
+     * @param loadedObjectClass
+     *            the class of the loaded objects
+     */
+    public static void startLoad(Class<?> loadedObjectClass) {
+        currentLoads.put(loadedObjectClass, new Object());
+        LoaderReferenceDataCache cache = boundCache.get();
+        if (cache != null && cache.loadedObjectClass.equals(loadedObjectClass)) {
+            boundCache.remove();
+        }
+    }
+
+    /**
+     * Get the cache of the current load for a type of loadable object, the
+     * cache is created and bound to the current thread on the first call.
+     *
+     * @param loadedObjectClass
+     *            the class of the loaded objects
+     *
+     * @return the cache or null if no load has been started for this type of
+     *         loadable object
+     */
+    public static LoaderReferenceDataCache current(Class<?> loadedObjectClass) {
+        Object load = currentLoads.get(loadedObjectClass);
+        if (load == null) {
+            log.warn("No load in progress for " + loadedObjectClass.getSimpleName() + ", the reference data are read from the database");
+            return null;
+        }
+        LoaderReferenceDataCache cache = boundCache.get();
+        if (cache == null || cache.load != load) {
+            cache = new LoaderReferenceDataCache(loadedObjectClass, load);
+            boundCache.set(cache);
+        }
+        return cache;
+    }
+
+    /**
+     * Get an actor type by ref id.
+     *
+     * @param refId
+     *            the actor type ref id
+     */
+    public ActorType getActorTypeByRefId(String refId) {
+        return lookup(ActorType.class, refId, actorType -> actorType.refId);
+    }
+
+    /**
+     * Get an org unit by ref id.
+     *
+     * @param refId
+     *            the org unit ref id
+     */
+    public OrgUnit getOrgUnitByRefId(String refId) {
+        return lookup(OrgUnit.class, refId, orgUnit -> orgUnit.refId);
+    }
+
+    /**
+     * Get an org unit type by ref id.
+     *
+     * @param refId
+     *            the org unit type ref id
+     */
+    public OrgUnitType getOrgUnitTypeByRefId(String refId) {
+        return lookup(OrgUnitType.class, refId, orgUnitType -> orgUnitType.refId);
+    }
+
+    /**
+     * Get a currency by code.
+     *
+     * @param code
+     *            the currency code
+     */
+    public Currency getCurrencyByCode(String code) {
+        return lookup(Currency.class, code, currency -> currency.code);
+    }
+
+    /**
+     * Get a cost center by ref id.
+     *
+     * @param refId
+     *            the cost center ref id
+     */
+    public CostCenter getCostCenterByRefId(String refId) {
+        return lookup(CostCenter.class, refId, costCenter -> costCenter.refId);
+    }
+
+    /**
+     * Get a supplier by ref id.
+     *
+     * @param refId
+     *            the supplier ref id
+     */
+    public Supplier getSupplierByRefId(String refId) {
+        return lookup(Supplier.class, refId, supplier -> supplier.refId);
+    }
+
+    /**
+     * Get the index of the existing actors (loaded with one query on the first
+     * call).
+     */
+    public synchronized ActorIndex getActorIndex() {
+        if (actorIndex == null) {
+            actorIndex = new ActorIndex();
+            for (Actor actor : Ebean.find(Actor.class).select("refId, uid, manager").where().eq("deleted", false).findList()) {
+                actorIndex.put(actor.id, actor.refId, actor.uid);
+                actorIndex.setParentId(actor.id, actor.manager != null ? actor.manager.id : null);
+            }
+            if (recordingChanges) {
+                actorIndex.beginChanges();
+            }
+        }
+        return actorIndex;
+    }
+
+    /**
+     * Get the index of the existing org units and of their parents (loaded
+     * with one query on the first call).
+     */
+    public synchronized HierarchyIndex getOrgUnitIndex() {
+        if (orgUnitIndex == null) {
+            orgUnitIndex = new HierarchyIndex();
+            for (OrgUnit orgUnit : Ebean.find(OrgUnit.class).select("refId, parent").where().eq("deleted", false).findList()) {
+                orgUnitIndex.put(orgUnit.id, orgUnit.refId);
+                orgUnitIndex.setParentId(orgUnit.id, orgUnit.parent != null ? orgUnit.parent.id : null);
+            }
+            if (recordingChanges) {
+                orgUnitIndex.beginChanges();
+            }
+        }
+        return orgUnitIndex;
+    }
+
+    /**
+     * Start recording the changes of the indexes (see
+     * {@link HierarchyIndex#beginChanges()}).
+     */
+    public synchronized void beginChanges() {
+        recordingChanges = true;
+        for (HierarchyIndex index : getIndexes()) {
+            index.beginChanges();
+        }
+    }
+
+    /**
+     * Keep the changes of the indexes done since {@link #beginChanges()}.
+     */
+    public synchronized void commitChanges() {
+        recordingChanges = false;
+        for (HierarchyIndex index : getIndexes()) {
+            index.commitChanges();
+        }
+    }
+
+    /**
+     * Revert the changes of the indexes done since {@link #beginChanges()}.
+     */
+    public synchronized void rollbackChanges() {
+        recordingChanges = false;
+        for (HierarchyIndex index : getIndexes()) {
+            index.rollbackChanges();
+        }
+    }
+
+    /**
+     * Get the indexes which have been loaded.<br/>
+     * Must be called in a synchronized block.
+     */
+    private List<HierarchyIndex> getIndexes() {
+        List<HierarchyIndex> indexes = new ArrayList<HierarchyIndex>();
+        if (actorIndex != null) {
+            indexes.add(actorIndex);
+        }
+        if (orgUnitIndex != null) {
+            indexes.add(orgUnitIndex);
+        }
+        return indexes;
+    }
+
+    /**
+     * Look for an object of a reference data type, the objects of this type
+     * are loaded with one query on the first call.
+     *
+     * @param referenceDataClass
+     *            the reference data type
+     * @param key
+     *            the key of the object (ex: a ref id)
+     * @param keyProvider
+     *            returns the key of an object
+     */
+    @SuppressWarnings("unchecked")
+    private synchronized <T> T lookup(Class<T> referenceDataClass, String key, Function<T, String> keyProvider) {
+        if (key == null || key.equals("")) {
+            return null;
+        }
+        Map<String, Object> objects = referenceData.get(referenceDataClass);
+        if (objects == null) {
+            objects = new HashMap<String, Object>();
+            for (T object : Ebean.find(referenceDataClass).where().eq("deleted", false).findList()) {
+                String objectKey = keyProvider.apply(object);
+                if (objectKey != null) {
+                    objects.put(objectKey, object);
+                }
+            }
+            objects = Collections.unmodifiableMap(objects);
+            referenceData.put(referenceDataClass, objects);
+        }
+        return (T) objects.get(key);
+    }
+
+    /**
+     * An in-memory index of the actors (id, ref id, login and manager) used to
+     * check the uniqueness of the logins, to decide if an actor must be
+     * created or updated and to resolve the managers without querying the
+     * database for each loaded row.<br/>
+     * The index must be updated with {@link #put(Long, String, String)} when
+     * an actor is saved.
+     */
+    public static class ActorIndex extends HierarchyIndex {
+        private Map<String, Long> idsByUid = new HashMap<String, Long>();
+        private Map<Long, String> uidsById = new HashMap<Long, String>();
+        private Map<String, String> loadedRefIdsByUid = new HashMap<String, String>();
+
+        private ActorIndex() {
+        }
+
+        /**
+         * Get the id of an actor by login (null if not found).
+         *
+         * @param uid
+         *            the actor login
+         */
+        public synchronized Long getIdByUid(String uid) {
+            return uid != null ? idsByUid.get(uid) : null;
+        }
+
+        /**
+         * Add or update an actor in the index.
+         *
+         * @param id
+         *            the actor id
+         * @param refId
+         *            the actor ref id
+         * @param uid
+         *            the actor login (may be null)
+         */
+        public synchronized void put(Long id, String refId, String uid) {
+            String previousUid = change(uidsById, id, null);
+            if (previousUid != null && id.equals(idsByUid.get(previousUid))) {
+                change(idsByUid, previousUid, null);
+            }
+            put(id, refId);
+            if (uid != null && !uid.equals("")) {
+                change(idsByUid, uid, id);
+                change(uidsById, id, uid);
+            }
+        }
+
+        /**
+         * Register the login of a row of the loaded file in order to detect
+         * the logins which are used by several actors of the file.
+         *
+         * @param uid
+         *            the login of the row
+         * @param refId
+         *            the actor ref id of the row
+         *
+         * @return the ref id of another actor of the file using the same
+         *         login, null if the login is not used by another actor
+         */
+        public synchronized String registerLoadedUid(String uid, String refId) {
+            String loadedRefId = loadedRefIdsByUid.get(uid);
+            if (loadedRefId == null) {
+                change(loadedRefIdsByUid, uid, refId);
+            }
+            return loadedRefId != null && !loadedRefId.equals(refId) ? loadedRefId : null;
+        }
+    }
+}
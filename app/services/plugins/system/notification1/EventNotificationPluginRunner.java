@@ -18,6 +18,7 @@
 package services.plugins.system.notification1;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import framework.services.custom_attribute.ICustomAttributeManagerService;
 import java.util.List;
 import java.util.Map;
@@ -40,6 +41,7 @@ import framework.services.plugins.api.IPluginMenuDescriptor;
 import framework.services.plugins.api.IPluginRunner;
 import framework.services.plugins.api.PluginException;
 import framework.services.script.IScriptService;
+import framework.services.system.ISysAdminUtils;
 import play.Logger;
 import play.libs.ws.WSClient;
 import services.plugins.system.HookScriptUtils;
@@ -65,19 +67,23 @@ public class EventNotificationPluginRunner implements IPluginRunner {
     private IScriptService scriptService;
     private IPluginContext pluginContext;
     private ScriptEngine scriptEngine;
+    private HookScriptUtils hookScriptUtils;
     private WSClient wsClient;
     private List<DataType> supportedDataTypes;
     private ICustomAttributeManagerService customAttributeManagerService;
+    private ISysAdminUtils sysAdminUtils;
     
     /**
      * Default constructor.
      */
     @Inject
-    public EventNotificationPluginRunner(IPluginContext pluginContext, WSClient wsClient, IScriptService scriptService, ICustomAttributeManagerService customAttributeManagerService) {
+    public EventNotificationPluginRunner(IPluginContext pluginContext, WSClient wsClient, IScriptService scriptService, ICustomAttributeManagerService customAttributeManagerService,
+            ISysAdminUtils sysAdminUtils) {
         this.pluginContext = pluginContext;
         this.wsClient=wsClient;
         this.scriptService=scriptService;
         this.customAttributeManagerService = customAttributeManagerService;
+        this.sysAdminUtils = sysAdminUtils;
     }
 
     /**
@@ -90,7 +96,8 @@ public class EventNotificationPluginRunner implements IPluginRunner {
         }
         this.supportedDataTypes = new ArrayList<DataType>();
         this.scriptEngine = getScriptService().getEngine(getPluginContext().getPluginConfigurationName());
-        this.scriptEngine.getContext().setAttribute("scriptUtils",new HookScriptUtils(getCustomAttributeManagerService(), getPluginContext(), getWsClient()), ScriptContext.ENGINE_SCOPE);
+        this.hookScriptUtils = new HookScriptUtils(getCustomAttributeManagerService(), getPluginContext(), getWsClient(), getSysAdminUtils());
+        this.scriptEngine.getContext().setAttribute("scriptUtils", getHookScriptUtils(), ScriptContext.ENGINE_SCOPE);
         Pair<Boolean, byte[]> hookScriptConfiguration=getPluginContext().getConfiguration(getPluginContext().getPluginDescriptor().getConfigurationBlockDescriptors().get(HOOKSCRIPT_CONFIGURATION_NAME), true);
         if(!hookScriptConfiguration.getLeft()){
             try {
@@ -115,6 +122,7 @@ public class EventNotificationPluginRunner implements IPluginRunner {
                     }
                     this.supportedDataTypes.add(dataType);
                 }
+                getHookScriptUtils().registerDataModelClasses(this.supportedDataTypes);
             } catch (NoSuchMethodException e) {
                 throw new PluginException("No method \"register\" in this hook script",e);
             } catch (ScriptException e) {
@@ -130,6 +138,10 @@ public class EventNotificationPluginRunner implements IPluginRunner {
     }
     
     private synchronized void shutDownScriptEngine(){
+        if(getHookScriptUtils()!=null){
+            getHookScriptUtils().shutdown();
+            this.hookScriptUtils=null;
+        }
         this.scriptEngine=null;
     }
 
@@ -142,8 +154,30 @@ public class EventNotificationPluginRunner implements IPluginRunner {
         if(log.isDebugEnabled()){
             log.debug("Received an event message "+eventMessage);
         }
+        if(getHookScriptUtils()!=null && eventMessage.getDataType()!=null){
+            getHookScriptUtils().registerDataModelClasses(Collections.singleton(eventMessage.getDataType()));
+            getHookScriptUtils().invalidateQueryCache(eventMessage.getDataType());
+        }
         if(getSupportedDataTypes().contains(eventMessage.getDataType())){
+            executeHookInvocation(eventMessage);
+        }
+    }
+
+    /**
+     * Execute the hook as an invocation of the script (see
+     * {@link HookScriptUtils#beginInvocation()}).
+     * @param eventMessage an event message
+     */
+    private synchronized void executeHookInvocation(EventMessage eventMessage) {
+        if(getHookScriptUtils()==null || getScriptEngine()==null){
+            log.warn("The plugin is stopped, the event message "+eventMessage+" is ignored");
+            return;
+        }
+        getHookScriptUtils().beginInvocation();
+        try{
             executeHook(eventMessage);
+        }finally{
+            getHookScriptUtils().endInvocation();
         }
     }
 
@@ -197,7 +231,13 @@ public class EventNotificationPluginRunner implements IPluginRunner {
 
     @Override
     public void start() throws PluginException {
-        initScriptEngine();
+        try{
+            initScriptEngine();
+        }catch(PluginException | RuntimeException e){
+            //Release the utilities (threads) created before the failure
+            shutDownScriptEngine();
+            throw e;
+        }
     }
 
     @Override
@@ -238,6 +278,14 @@ public class EventNotificationPluginRunner implements IPluginRunner {
     private ICustomAttributeManagerService getCustomAttributeManagerService() {
         return this.customAttributeManagerService;
     }
+
+    private ISysAdminUtils getSysAdminUtils() {
+        return sysAdminUtils;
+    }
+
+    private HookScriptUtils getHookScriptUtils() {
+        return hookScriptUtils;
+    }
     
     
 }
@@ -26,6 +26,8 @@ import javax.xml.bind.annotation.XmlElement;
 import org.apache.commons.beanutils.BeanUtils;
 import org.apache.commons.lang3.tuple.Pair;
 
+import com.avaje.ebean.Ebean;
+
 import dao.pmo.ActorDao;
 import dao.pmo.OrgUnitDao;
 import framework.services.plugins.loader.toolkit.ILoadableObject;
@@ -38,6 +40,8 @@ import play.data.Form;
 import play.data.validation.Constraints.MaxLength;
 import play.data.validation.Constraints.Required;
 import play.data.validation.ValidationError;
+import services.plugins.system.loader.HierarchyIndex;
+import services.plugins.system.loader.LoaderReferenceDataCache;
 
 /**
  * An object structure which is to be used to load org units data.<br/>
@@ -152,7 +156,15 @@ public class OrgUnitLoadableObject implements ILoadableObject {
 
         boolean isNew = false;
 
-        OrgUnit orgUnit = OrgUnitDao.getOrgUnitByRefId(getRefId());
+        LoaderReferenceDataCache referenceDataCache = getReferenceDataCache();
+
+        OrgUnit orgUnit;
+        if (referenceDataCache != null) {
+            Long orgUnitId = referenceDataCache.getOrgUnitIndex().getIdByRefId(getRefId());
+            orgUnit = orgUnitId != null ? Ebean.find(OrgUnit.class, orgUnitId) : null;
+        } else {
+            orgUnit = OrgUnitDao.getOrgUnitByRefId(getRefId());
+        }
 
         if (orgUnit == null) {
             orgUnit = new OrgUnit();
@@ -167,6 +179,10 @@ public class OrgUnitLoadableObject implements ILoadableObject {
 
         orgUnit.save();
 
+        if (referenceDataCache != null) {
+            referenceDataCache.getOrgUnitIndex().put(orgUnit.id, orgUnit.refId);
+        }
+
         if (isNew) {
             return Pair.of(orgUnit.id, orgUnit.refId);
         }
@@ -175,26 +191,62 @@ public class OrgUnitLoadableObject implements ILoadableObject {
     }
 
     /**
-     * Look for the parent and update the org unit.<br/>
+     * Look for the parent in the index of the org units and assign it to the
+     * org unit in the index.<br/>
      * This must be done after all the org unit have been created or updated in
      * order to avoid missing parent.<br/>
-     * If the parent is not found, this method returns a pair with the refId and
-     * the parentRefId
+     * If the parent is not found or if it would create a cycle in the
+     * hierarchy, a message is added to the report.
+     * 
+     * @param orgUnitIndex
+     *            the index of the org units of the load
+     * @param messages
+     *            the messages of the report
      * 
-     * @return a tuple (refId, parentRefId)
+     * @return true if the parent of the org unit must be updated with
+     *         {@link #updateParent(HierarchyIndex)}
      */
-    Pair<String, String> addParent() {
-        if (getParentRefId() != null && !getParentRefId().equals("")) {
-            OrgUnit foundParent = OrgUnitDao.getOrgUnitByRefId(getParentRefId());
-            if (foundParent != null) {
-                OrgUnit currentOrgUnit = OrgUnitDao.getOrgUnitByRefId(getRefId());
-                currentOrgUnit.parent = foundParent;
-                currentOrgUnit.save();
-            } else {
-                return Pair.of(getRefId(), getParentRefId());
-            }
+    boolean resolveParent(HierarchyIndex orgUnitIndex, List<String> messages) {
+        if (getParentRefId() == null || getParentRefId().equals("")) {
+            return false;
         }
-        return null;
+        Long orgUnitId = orgUnitIndex.getIdByRefId(getRefId());
+        Long parentId = orgUnitIndex.getIdByRefId(getParentRefId());
+        if (parentId == null) {
+            messages.add("Org unit " + getRefId() + ": impossible to find his parent with refId " + getParentRefId());
+            return false;
+        }
+        if (orgUnitId == null || parentId.equals(orgUnitIndex.getParentId(orgUnitId))) {
+            return false;
+        }
+        if (!orgUnitIndex.assignParent(orgUnitId, parentId)) {
+            messages.add("Org unit " + getRefId() + ": the parent with refId " + getParentRefId() + " would create a cycle in the hierarchy");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Update the parent of the org unit with the one assigned by
+     * {@link #resolveParent(HierarchyIndex, List)} (without loading the org
+     * unit).
+     * 
+     * @param orgUnitIndex
+     *            the index of the org units of the load
+     */
+    void updateParent(HierarchyIndex orgUnitIndex) {
+        Long orgUnitId = orgUnitIndex.getIdByRefId(getRefId());
+        OrgUnit currentOrgUnit = Ebean.getReference(OrgUnit.class, orgUnitId);
+        currentOrgUnit.parent = Ebean.getReference(OrgUnit.class, orgUnitIndex.getParentId(orgUnitId));
+        Ebean.update(currentOrgUnit);
+    }
+
+    /**
+     * Get the reference data cache of the load running in the current thread
+     * (null if none).
+     */
+    private static LoaderReferenceDataCache getReferenceDataCache() {
+        return LoaderReferenceDataCache.current(OrgUnitLoadableObject.class);
     }
 
     /**
@@ -327,6 +379,10 @@ public class OrgUnitLoadableObject implements ILoadableObject {
      * Get the org unit type for the type ref id.
      */
     public OrgUnitType getOrgUnitType() {
+        LoaderReferenceDataCache referenceDataCache = getReferenceDataCache();
+        if (referenceDataCache != null) {
+            return referenceDataCache.getOrgUnitTypeByRefId(getTypeRefId());
+        }
         return OrgUnitDao.getOrgUnitTypeByRefId(getTypeRefId());
     }
 
@@ -18,22 +18,20 @@
 package services.plugins.system.orgunitsload1;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
 import javax.inject.Inject;
 
-import org.apache.commons.lang3.tuple.Pair;
-
 import dao.pmo.OrgUnitDao;
 import framework.services.plugins.api.IPluginContext;
 import framework.services.plugins.api.IPluginMenuDescriptor;
-import framework.services.plugins.loader.toolkit.AbstractJavaScriptFileLoaderMapper;
 import framework.services.plugins.loader.toolkit.IGenericFileLoaderMapper;
 import framework.services.plugins.loader.toolkit.LoadableObjectPluginRunner;
 import framework.services.script.IScriptService;
 import framework.services.system.ISysAdminUtils;
+import services.plugins.system.loader.AbstractChunkedJavaScriptFileLoaderMapper;
+import services.plugins.system.loader.HierarchyIndex;
 
 /**
  * Org unit loader plugin.
@@ -59,7 +57,8 @@ public class OrgUnitLoaderPluginRunner extends LoadableObjectPluginRunner<OrgUni
 
     @Override
     public IGenericFileLoaderMapper<OrgUnitLoadableObject> createGenericFileLoaderMapper(final String javaScriptMappingScript) {
-        return new AbstractJavaScriptFileLoaderMapper<OrgUnitLoadableObject>(OrgUnitLoadableObject.class, javaScriptMappingScript, getScriptService()) {
+        return new AbstractChunkedJavaScriptFileLoaderMapper<OrgUnitLoadableObject>(OrgUnitLoadableObject.class, javaScriptMappingScript,
+                getScriptService()) {
 
             @Override
             public String getLoadedObjectName() {
@@ -67,8 +66,7 @@ public class OrgUnitLoaderPluginRunner extends LoadableObjectPluginRunner<OrgUni
             }
 
             @Override
-            public Pair<String, List<String>> beforeSave(List<OrgUnitLoadableObject> listOfValidLoadedObjects) throws IOException {
-
+            protected void beforeSaveStart() throws IOException {
                 if (isUnactivateNotFoundObjects()) {
                     String unactivationSelectionClause = getUnactivationSelectionClause();
                     unactivationSelectionClause = unactivationSelectionClause
@@ -76,29 +74,42 @@ public class OrgUnitLoaderPluginRunner extends LoadableObjectPluginRunner<OrgUni
                             .replace("manager_ref_id", "(select actor.ref_id from actor where actor.id=manager_id)");
                     OrgUnitDao.unactivateOrgUnits(unactivationSelectionClause);
                 }
+            }
 
-                List<String> notFoundRelations = new ArrayList<String>();
-                for (OrgUnitLoadableObject orgUnitLoadObject : listOfValidLoadedObjects) {
+            @Override
+            protected void beforeSaveChunk(List<OrgUnitLoadableObject> chunk, List<String> notFoundRelations) throws IOException {
+                for (OrgUnitLoadableObject orgUnitLoadObject : chunk) {
                     if (orgUnitLoadObject.getManagerRefId() != null && !orgUnitLoadObject.getManagerRefId().equals("")
                             && orgUnitLoadObject.getManager() == null) {
                         notFoundRelations.add("Org unit " + orgUnitLoadObject.getRefId() + ": "
                                 + String.format("manager %s does not exist", orgUnitLoadObject.getManagerRefId()));
                     }
                 }
+            }
 
-                return Pair.of("Not found relations", notFoundRelations);
+            @Override
+            protected String getBeforeSaveReportTitle() {
+                return "Not found relations";
             }
 
             @Override
-            public Pair<String, List<String>> afterSave(List<OrgUnitLoadableObject> listOfValidLoadedObjects) throws IOException {
-                List<String> managerNotFound = new ArrayList<String>();
-                for (OrgUnitLoadableObject orgUnitLoadObject : listOfValidLoadedObjects) {
-                    Pair<String, String> pair = orgUnitLoadObject.addParent();
-                    if (pair != null) {
-                        managerNotFound.add("Org unit " + pair.getLeft() + ": impossible to find his parent with refId " + pair.getRight());
+            protected void afterSaveAll(List<OrgUnitLoadableObject> listOfValidLoadedObjects, List<String> messages) throws IOException {
+                // the parents may be defined anywhere in the file
+                // the assignments are done in the chunks so that they are
+                // reverted in the index if the transaction is rolled back
+                HierarchyIndex orgUnitIndex = getReferenceDataCache().getOrgUnitIndex();
+                processByChunks(listOfValidLoadedObjects, messages, (chunk, chunkMessages) -> {
+                    for (OrgUnitLoadableObject orgUnitLoadObject : chunk) {
+                        if (orgUnitLoadObject.resolveParent(orgUnitIndex, chunkMessages)) {
+                            orgUnitLoadObject.updateParent(orgUnitIndex);
+                        }
                     }
-                }
-                return Pair.of("Parent association", managerNotFound);
+                });
+            }
+
+            @Override
+            protected String getAfterSaveReportTitle() {
+                return "Parent association";
             }
         };
     }
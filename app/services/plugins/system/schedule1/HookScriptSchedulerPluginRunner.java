@@ -59,6 +59,7 @@ public class HookScriptSchedulerPluginRunner implements IPluginRunner{
     private IPluginContext pluginContext;
     private WSClient wsClient;
     private ScriptEngine scriptEngine;
+    private HookScriptUtils hookScriptUtils;
     private ISysAdminUtils systAdminUtils;
     private String loadStartTime;
     private FiniteDuration loadFrequency;
@@ -84,7 +85,8 @@ public class HookScriptSchedulerPluginRunner implements IPluginRunner{
             log.debug("Activating the script engine...");
         }
         this.scriptEngine = getScriptService().getEngine(getPluginContext().getPluginConfigurationName());
-        this.scriptEngine.getContext().setAttribute("scriptUtils",new HookScriptUtils(getCustomAttributeManagerService(), getPluginContext(),getWsClient()), ScriptContext.ENGINE_SCOPE);
+        this.hookScriptUtils = new HookScriptUtils(getCustomAttributeManagerService(), getPluginContext(), getWsClient(), getSystAdminUtils());
+        this.scriptEngine.getContext().setAttribute("scriptUtils", getHookScriptUtils(), ScriptContext.ENGINE_SCOPE);
         Pair<Boolean, byte[]> hookScriptConfiguration=getPluginContext().getConfiguration(getPluginContext().getPluginDescriptor().getConfigurationBlockDescriptors().get(HOOKSCRIPT_CONFIGURATION_NAME), true);
         if(!hookScriptConfiguration.getLeft()){
             try {
@@ -146,16 +148,27 @@ public class HookScriptSchedulerPluginRunner implements IPluginRunner{
      * Execute the hook script
      */
     private synchronized void executeHookScript(){
+        if(getHookScriptUtils()==null || scriptEngine==null){
+            log.warn("The plugin is stopped, the hook script is not executed");
+            return;
+        }
+        getHookScriptUtils().beginInvocation();
         try{
             Invocable invocable = (Invocable) scriptEngine;
             invocable.invokeFunction(HOOK_METHOD, new Date());
             getPluginContext().reportMessage(null, false, "Hook script sucessfully executed");
         }catch(Exception e){
             getPluginContext().reportMessage(null, true, "Error while executing the hook script",e);
+        }finally{
+            getHookScriptUtils().endInvocation();
         }
     }
     
     private synchronized void shutDownScriptEngine(){
+        if(getHookScriptUtils()!=null){
+            getHookScriptUtils().shutdown();
+            this.hookScriptUtils=null;
+        }
         this.scriptEngine=null;
     }
     
@@ -209,8 +222,15 @@ public class HookScriptSchedulerPluginRunner implements IPluginRunner{
 
     @Override
     public void start() throws PluginException {
-        initScriptEngine();
-        initScheduler();
+        try{
+            initScriptEngine();
+            initScheduler();
+        }catch(PluginException | RuntimeException e){
+            //Release the scheduler and the utilities (threads) created before the failure
+            shutDownScheduler();
+            shutDownScriptEngine();
+            throw e;
+        }
     }
 
     @Override
@@ -263,4 +283,8 @@ public class HookScriptSchedulerPluginRunner implements IPluginRunner{
         return this.customAttributeManagerService;
     }
 
+    private HookScriptUtils getHookScriptUtils() {
+        return hookScriptUtils;
+    }
+
 }
@@ -30,6 +30,9 @@ import java.util.Map;
 import org.apache.commons.beanutils.BeanUtils;
 import org.apache.commons.lang3.tuple.Pair;
 
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.TxCallable;
+
 import controllers.admin.UserManager;
 import dao.pmo.ActorDao;
 import dao.pmo.PortfolioEntryDao;
@@ -139,6 +142,21 @@ public class TimesheetLoadableObject implements ILoadableObject {
     
     @Override
     public Pair<Long, String> updateOrCreate() {
+        // the objects of the row are saved in one transaction
+        return Ebean.execute(new TxCallable<Pair<Long, String>>() {
+            @Override
+            public Pair<Long, String> call() {
+                return updateOrCreateTimesheetLog();
+            }
+        });
+    }
+
+    /**
+     * Update or create the timesheet report, entry and log of the row.
+     * 
+     * @return a tuple (id of the timesheet log, description)
+     */
+    private Pair<Long, String> updateOrCreateTimesheetLog() {
         PortfolioEntry pe=getPortfolioEntry();
         PortfolioEntryPlanningPackage pp=getPlanningPackage();
         Date logDateAsDate=getLogDateAsDate();
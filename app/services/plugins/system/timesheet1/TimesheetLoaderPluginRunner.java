@@ -1,20 +1,17 @@
 package services.plugins.system.timesheet1;
 
-import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
 
 import javax.inject.Inject;
 
-import org.apache.commons.lang3.tuple.Pair;
-
 import framework.services.plugins.api.IPluginContext;
 import framework.services.plugins.api.IPluginMenuDescriptor;
-import framework.services.plugins.loader.toolkit.AbstractJavaScriptFileLoaderMapper;
 import framework.services.plugins.loader.toolkit.IGenericFileLoaderMapper;
 import framework.services.plugins.loader.toolkit.LoadableObjectPluginRunner;
 import framework.services.script.IScriptService;
 import framework.services.system.ISysAdminUtils;
+import services.plugins.system.loader.AbstractChunkedJavaScriptFileLoaderMapper;
 
 /**
  * A loader for loading timesheets
@@ -36,18 +33,9 @@ public class TimesheetLoaderPluginRunner extends LoadableObjectPluginRunner<Time
 
     @Override
     public IGenericFileLoaderMapper<TimesheetLoadableObject> createGenericFileLoaderMapper(final String javaScriptMappingScript) {
-        return new AbstractJavaScriptFileLoaderMapper<TimesheetLoadableObject>(TimesheetLoadableObject.class, javaScriptMappingScript, getScriptService()) {
-
-            @Override
-            public Pair<String, List<String>> beforeSave(List<TimesheetLoadableObject> listOfValidLoadedObjects) throws IOException {
-                return null;
-            }
+        return new AbstractChunkedJavaScriptFileLoaderMapper<TimesheetLoadableObject>(TimesheetLoadableObject.class, javaScriptMappingScript,
+                getScriptService()) {
 
-            @Override
-            public Pair<String, List<String>> afterSave(List<TimesheetLoadableObject> listOfValidLoadedObjects) throws IOException {
-                return null;
-            }
-            
             @Override
             public String getLoadedObjectName() {
                 return "Timesheet loader";
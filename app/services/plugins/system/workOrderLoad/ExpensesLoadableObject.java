@@ -33,9 +33,12 @@ import models.pmo.OrgUnit;
 import models.pmo.PortfolioEntry;
 import org.apache.commons.beanutils.BeanUtils;
 import org.apache.commons.lang3.tuple.Pair;
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.TxCallable;
 import play.data.Form;
 import play.data.validation.Constraints.Required;
 import play.data.validation.ValidationError;
+import services.plugins.system.loader.LoaderReferenceDataCache;
 
 import javax.xml.bind.annotation.XmlElement;
 import java.lang.reflect.InvocationTargetException;
@@ -144,6 +147,21 @@ public class ExpensesLoadableObject implements ILoadableObject {
 
     @Override
     public Pair<Long, String> updateOrCreate() {
+        // the objects of the row are saved in one transaction
+        return Ebean.execute(new TxCallable<Pair<Long, String>>() {
+            @Override
+            public Pair<Long, String> call() {
+                return createWorkOrder();
+            }
+        });
+    }
+
+    /**
+     * Create the work order and its custom attributes values.
+     * 
+     * @return a tuple (id of the work order, name)
+     */
+    private Pair<Long, String> createWorkOrder() {
         WorkOrder workOrder = new WorkOrder();
 
         PortfolioEntry pe =PortfolioEntryDao.getPEByGovernanceId(this.governanceId);
@@ -377,6 +395,10 @@ public class ExpensesLoadableObject implements ILoadableObject {
      * Get the the currency for the currency code.
      */
     public Currency getCurrencyCode() {
+    	LoaderReferenceDataCache referenceDataCache = LoaderReferenceDataCache.current(ExpensesLoadableObject.class);
+    	if (referenceDataCache != null) {
+    		return referenceDataCache.getCurrencyByCode("CHF");
+    	}
     	return CurrencyDAO.getCurrencyByCode("CHF");
     }
     
@@ -20,18 +20,16 @@ package services.plugins.system.workOrderLoad;
 import dao.finance.WorkOrderDAO;
 import framework.services.plugins.api.IPluginContext;
 import framework.services.plugins.api.IPluginMenuDescriptor;
-import framework.services.plugins.loader.toolkit.AbstractJavaScriptFileLoaderMapper;
 import framework.services.plugins.loader.toolkit.IGenericFileLoaderMapper;
 import framework.services.plugins.loader.toolkit.LoadableObjectPluginRunner;
 import framework.services.script.IScriptService;
 import framework.services.system.ISysAdminUtils;
 import models.finance.WorkOrder;
 import models.pmo.PortfolioEntry;
-import org.apache.commons.lang3.tuple.Pair;
+import services.plugins.system.loader.AbstractChunkedJavaScriptFileLoaderMapper;
 
 import javax.inject.Inject;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -60,7 +58,8 @@ public class ExpensesLoaderPluginRunner extends LoadableObjectPluginRunner<Expen
 
     @Override
     public IGenericFileLoaderMapper<ExpensesLoadableObject> createGenericFileLoaderMapper(final String javaScriptMappingScript) {
-        return new AbstractJavaScriptFileLoaderMapper<ExpensesLoadableObject>(ExpensesLoadableObject.class, javaScriptMappingScript, getScriptService()) {
+        return new AbstractChunkedJavaScriptFileLoaderMapper<ExpensesLoadableObject>(ExpensesLoadableObject.class, javaScriptMappingScript,
+                getScriptService()) {
 
             @Override
             public String getLoadedObjectName() {
@@ -68,9 +67,8 @@ public class ExpensesLoaderPluginRunner extends LoadableObjectPluginRunner<Expen
             }
 
             @Override
-            public Pair<String, List<String>> beforeSave(List<ExpensesLoadableObject> listOfValidLoadedObjects) throws IOException {
-                List<String> deletedWorkOrdersInitatives = new ArrayList<>();
-                listOfValidLoadedObjects.stream().forEach(workOrder -> {
+            protected void beforeSaveChunk(List<ExpensesLoadableObject> chunk, List<String> deletedWorkOrdersInitatives) throws IOException {
+                chunk.stream().forEach(workOrder -> {
                     PortfolioEntry pe = workOrder.getPortfolioEntry();
                     List<WorkOrder> workOrders = WorkOrderDAO.getWorkOrderAsList(pe.id);
                     if (!workOrders.isEmpty()) {
@@ -80,15 +78,13 @@ public class ExpensesLoaderPluginRunner extends LoadableObjectPluginRunner<Expen
                         pe.save();
                     }
                 });
-                return Pair.of("Initiatives work orders removed", deletedWorkOrdersInitatives);
             }
 
             @Override
-            public Pair<String, List<String>> afterSave(List<ExpensesLoadableObject> listOfValidLoadedObjects) throws IOException {
-            	 return null;
+            protected String getBeforeSaveReportTitle() {
+                return "Initiatives work orders removed";
             }
 
-
         };
     }
 
@@ -0,0 +1,38 @@
+package services.plugins.system;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import services.plugins.system.HookScriptUtils.HookDataQueryExpression;
+
+/**
+ * Tests of {@link HookDataQueryExpression}.
+ */
+public class HookDataQueryExpressionTest {
+
+    @Test
+    public void testSelfReferencingComposition() {
+        HookDataQueryExpression expression = new HookDataQueryExpression();
+        expression.and(expression.eq("a", 1), new HookDataQueryExpression().eq("b", 2));
+        assertEquals("AND(EQ(a,Integer:1),EQ(b,Integer:2))", toCacheKey(expression));
+
+        expression.not(expression);
+        assertEquals("NOT(AND(EQ(a,Integer:1),EQ(b,Integer:2)))", toCacheKey(expression));
+    }
+
+    @Test
+    public void testOperandModifiedAfterComposition() {
+        HookDataQueryExpression operand = new HookDataQueryExpression().eq("a", 1);
+        HookDataQueryExpression expression = new HookDataQueryExpression().or(operand, new HookDataQueryExpression().eq("b", 2));
+        operand.eq("c", 3);
+        assertEquals("OR(EQ(a,Integer:1),EQ(b,Integer:2))", toCacheKey(expression));
+        assertEquals("EQ(c,Integer:3)", toCacheKey(operand));
+    }
+
+    private static String toCacheKey(HookDataQueryExpression expression) {
+        StringBuilder key = new StringBuilder();
+        expression.appendCacheKey(key, null);
+        return key.toString();
+    }
+}
@@ -0,0 +1,122 @@
+package services.plugins.system;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests of {@link HookRecordCodec}.
+ */
+public class HookRecordCodecTest {
+
+    @Test
+    public void testEncodeDecodeScalars() throws IOException {
+        assertEquals("a string", roundTrip("a string"));
+        assertEquals(Boolean.TRUE, roundTrip(Boolean.TRUE));
+        assertNull(HookRecordCodec.encode(null));
+        assertNull(HookRecordCodec.decode(null));
+    }
+
+    @Test
+    public void testEncodeDecodeNumbers() throws IOException {
+        assertEquals(Integer.valueOf(42), roundTrip(Integer.valueOf(42)));
+        assertEquals(Long.valueOf(Long.MAX_VALUE), roundTrip(Long.valueOf(Long.MAX_VALUE)));
+        assertEquals(Double.valueOf(3.25), roundTrip(Double.valueOf(3.25)));
+        BigInteger bigInteger = new BigInteger("123456789012345678901234567890");
+        assertEquals(bigInteger, roundTrip(bigInteger));
+    }
+
+    @Test
+    public void testBigDecimalIsExact() throws IOException {
+        BigDecimal amount = new BigDecimal("12345678901234567890.1234567890");
+        assertEquals(amount, roundTrip(amount));
+        // The scale is kept (equals compares the scale)
+        BigDecimal price = new BigDecimal("10.50");
+        Object decodedPrice = roundTrip(price);
+        assertTrue(decodedPrice instanceof BigDecimal);
+        assertEquals(price, decodedPrice);
+    }
+
+    @Test
+    public void testEncodeDecodeStructures() throws IOException {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("name", "hook");
+        map.put("amount", new BigDecimal("99.99"));
+        map.put("items", Arrays.asList("a", 1, true));
+        map.put("nothing", null);
+
+        Object decoded = roundTrip(map);
+        assertTrue(decoded instanceof Map);
+        @SuppressWarnings("unchecked")
+        Map<String, Object> decodedMap = (Map<String, Object>) decoded;
+        assertEquals(Arrays.asList("name", "amount", "items", "nothing"), Arrays.asList(decodedMap.keySet().toArray()));
+        assertEquals("hook", decodedMap.get("name"));
+        assertEquals(new BigDecimal("99.99"), decodedMap.get("amount"));
+        assertEquals(Arrays.asList("a", 1, true), decodedMap.get("items"));
+        assertTrue(decodedMap.containsKey("nothing"));
+        assertNull(decodedMap.get("nothing"));
+    }
+
+    @Test
+    public void testEncodedFormat() throws IOException {
+        Object encoded = HookRecordCodec.encode("value");
+        assertTrue(encoded instanceof byte[]);
+        assertTrue(HookRecordCodec.isEncoded(encoded));
+        byte[] header = Arrays.copyOf((byte[]) encoded, 4);
+        assertArrayEquals(new byte[] { 'H', 'K', 'S', 1 }, header);
+    }
+
+    @Test
+    public void testNotEncodableValuesAreUnchanged() throws IOException {
+        Date date = new Date();
+        assertFalse(HookRecordCodec.isEncodable(date));
+        assertSame(date, HookRecordCodec.encode(date));
+
+        Map<Object, Object> mapWithNonStringKey = new LinkedHashMap<Object, Object>();
+        mapWithNonStringKey.put(1, "one");
+        assertFalse(HookRecordCodec.isEncodable(mapWithNonStringKey));
+
+        List<Object> listWithDate = Arrays.asList("a", date);
+        assertFalse(HookRecordCodec.isEncodable(listWithDate));
+        assertSame(listWithDate, HookRecordCodec.encode(listWithDate));
+    }
+
+    @Test
+    public void testLegacyValuesAreDecodedUnchanged() throws IOException {
+        Map<String, Object> legacy = new LinkedHashMap<String, Object>();
+        legacy.put("count", 3);
+        assertFalse(HookRecordCodec.isEncoded(legacy));
+        assertSame(legacy, HookRecordCodec.decode(legacy));
+
+        byte[] rawBytes = new byte[] { 1, 2, 3, 4, 5 };
+        assertFalse(HookRecordCodec.isEncoded(rawBytes));
+        assertSame(rawBytes, HookRecordCodec.decode(rawBytes));
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnsupportedVersion() throws IOException {
+        byte[] encoded = ((byte[]) HookRecordCodec.encode("value")).clone();
+        encoded[3] = 99;
+        HookRecordCodec.decode(encoded);
+    }
+
+    private static Object roundTrip(Object value) throws IOException {
+        Object encoded = HookRecordCodec.encode(value);
+        assertTrue(HookRecordCodec.isEncoded(encoded));
+        return HookRecordCodec.decode(encoded);
+    }
+}